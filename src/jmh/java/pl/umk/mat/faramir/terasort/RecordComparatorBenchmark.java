@@ -0,0 +1,86 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares whole records with the byte loop of the original {@code Text.compareTo},
+ * with {@link Arrays#compareUnsigned(byte[], byte[])} alone and with {@link RecordComparator}.
+ * <p>
+ * {@code random} records are TeraGen-like, so keys differ in the first bytes;
+ * {@code commonPrefix} records share 90 leading bytes, as records with equal keys do.
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordComparatorBenchmark {
+    private static final int RECORDS = 1024;
+
+    @Param({"random", "commonPrefix"})
+    public String data;
+
+    private byte[][] records;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        records = new byte[RECORDS][RecordBuffer.RECORD_LENGTH];
+        for (byte[] record : records) {
+            random.nextBytes(record);
+        }
+        if ("commonPrefix".equals(data)) {
+            int prefix = RecordBuffer.RECORD_LENGTH - RecordBuffer.KEY_LENGTH;
+            for (byte[] record : records) {
+                System.arraycopy(records[0], 0, record, 0, prefix);
+            }
+        }
+    }
+
+    private byte[] left() {
+        return records[next & (RECORDS - 1)];
+    }
+
+    private byte[] right() {
+        return records[(next++ + 1) & (RECORDS - 1)];
+    }
+
+    @Benchmark
+    public int byteLoop() {
+        byte[] left = left();
+        byte[] right = right();
+        for (int i = 0; i < left.length; ++i) {
+            int r = Integer.compare(left[i] & 0xFF, right[i] & 0xFF);
+            if (r != 0) {
+                return r;
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public int compareUnsigned() {
+        return Arrays.compareUnsigned(left(), right());
+    }
+
+    @Benchmark
+    public int recordComparator() {
+        return RecordComparator.INSTANCE.compare(left(), right());
+    }
+}
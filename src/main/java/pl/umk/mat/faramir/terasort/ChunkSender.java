@@ -0,0 +1,75 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.Arrays;
+import java.util.function.BiFunction;
+import org.pcj.PcjFuture;
+
+/**
+ * Streams records to destinations in fixed-size chunks.
+ * <p>
+ * Records for every destination are staged in a heap array, allocated on first use,
+ * and handed to the transport as one packed chunk as soon as it fills up. Chunks are
+ * throttled by {@link SendCredits}: when a receiver falls behind, adding records for it
+ * blocks until enough of its earlier chunks are delivered, so memory used by the sender
+ * is bounded by the credit plus one staged chunk per destination.
+ */
+public class ChunkSender {
+    private final byte[][] staging;
+    private final int[] stagedBytes;
+    private final SendCredits credits;
+    private final int chunkBytes;
+    private final BiFunction<Integer, byte[], PcjFuture<Void>> transport;
+
+    /**
+     * @param transport delivers a chunk to a destination; returns future of the delivery
+     *                  or {@code null} when the chunk was delivered synchronously
+     */
+    public ChunkSender(int destinations, int chunkRecords, long maxInFlightBytes,
+                       BiFunction<Integer, byte[], PcjFuture<Void>> transport) {
+        this.staging = new byte[destinations][];
+        this.stagedBytes = new int[destinations];
+        this.credits = new SendCredits(destinations, maxInFlightBytes);
+        this.chunkBytes = chunkRecords * RecordBuffer.RECORD_LENGTH;
+        this.transport = transport;
+    }
+
+    public void add(int destination, byte[] record, int offset) {
+        if (staging[destination] == null) {
+            staging[destination] = new byte[chunkBytes];
+        }
+        System.arraycopy(record, offset, staging[destination], stagedBytes[destination], RecordBuffer.RECORD_LENGTH);
+        stagedBytes[destination] += RecordBuffer.RECORD_LENGTH;
+        if (stagedBytes[destination] == chunkBytes) {
+            flush(destination);
+        }
+    }
+
+    public void flush(int destination) {
+        if (stagedBytes[destination] == 0) {
+            return;
+        }
+        // the transport may serialize the chunk later, so a sent array is never reused
+        byte[] packed = stagedBytes[destination] == chunkBytes
+                ? staging[destination]
+                : Arrays.copyOf(staging[destination], stagedBytes[destination]);
+        staging[destination] = null;
+        stagedBytes[destination] = 0;
+
+        credits.acquire(destination, packed.length);
+        credits.register(destination, packed.length, transport.apply(destination, packed));
+    }
+
+    /**
+     * Sends all staged records and waits until every chunk is delivered.
+     */
+    public void finish() {
+        for (int i = 0; i < staging.length; ++i) {
+            flush(i);
+        }
+        credits.awaitAll();
+    }
+
+    public SendCredits credits() {
+        return credits;
+    }
+}
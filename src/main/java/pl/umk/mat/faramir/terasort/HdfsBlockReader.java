@@ -0,0 +1,161 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Reads an HDFS file in large blocks into a reused buffer and slices records out of it.
+ * <p>
+ * Every call to {@link FSDataInputStream} goes through the stream and checksum machinery of
+ * the HDFS client, so reading a record (or two parts of it) per call is expensive. Here the
+ * stream is asked for {@code hdfs.readBlockSize} bytes at once and records are copied from
+ * the buffer. Seeking within the buffered block does not touch the stream. The buffer is kept
+ * when the next file is opened. A seek may set a read limit, so that a block read at the end
+ * of a range does not pull in records of other readers (often from a remote HDFS block).
+ * <p>
+ * Read engine is selected by {@code hdfs.readEngine}:
+ * <ul>
+ * <li>{@code stream} (default) reads blocks sequentially into a heap buffer,</li>
+ * <li>{@code pread} uses positional reads, which do not move the stream position and can be
+ * served by hedged reads when the client enables them
+ * ({@code dfs.client.hedged.read.threadpool.size}),</li>
+ * <li>{@code bytebuffer} reads into a direct buffer through {@code ByteBufferReadable},
+ * which lets short-circuit local reads skip a copy; it falls back to {@code stream} when
+ * the underlying stream does not support it.</li>
+ * </ul>
+ */
+public class HdfsBlockReader implements AutoCloseable {
+    private static final Engine ENGINE = Engine.valueOf(
+            System.getProperty("hdfs.readEngine", "stream").toUpperCase(Locale.ENGLISH));
+    private static final int BLOCK_SIZE = Integer.parseInt(System.getProperty("hdfs.readBlockSize", "8388608"));
+
+    enum Engine {
+        STREAM, PREAD, BYTEBUFFER
+    }
+
+    private Engine engine;
+    private ByteBuffer buffer;
+    private FSDataInputStream input;
+    private long fileLength;
+    private long readLimit;
+    private long bufferStart;
+    private long nextRead;
+    private boolean streamPositioned;
+
+    public HdfsBlockReader() {
+        // whole records fit in a block, so a record is rarely split between two reads
+        int capacity = Math.max(BLOCK_SIZE / RecordBuffer.RECORD_LENGTH, 1) * RecordBuffer.RECORD_LENGTH;
+        engine = ENGINE;
+        buffer = engine == Engine.BYTEBUFFER ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.limit(0);
+    }
+
+    public static String engine() {
+        return ENGINE.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public static int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    /**
+     * Starts reading {@code fileLength} bytes of {@code input} from its beginning, closing
+     * the previously read stream.
+     */
+    public void open(FSDataInputStream input, long fileLength) throws IOException {
+        close();
+        this.input = input;
+        this.fileLength = fileLength;
+        this.readLimit = fileLength;
+        this.bufferStart = 0;
+        this.nextRead = 0;
+        this.streamPositioned = true;
+        buffer.limit(0);
+    }
+
+    public void seek(long position) throws IOException {
+        seek(position, fileLength);
+    }
+
+    /**
+     * Moves to {@code position}; following reads from the stream end at {@code limit} bytes.
+     */
+    public void seek(long position, long limit) throws IOException {
+        readLimit = Math.min(limit, fileLength);
+        if (position >= bufferStart && position < bufferStart + buffer.limit()) {
+            buffer.position((int) (position - bufferStart));
+            return;
+        }
+        buffer.limit(0);
+        bufferStart = position;
+        nextRead = position;
+        streamPositioned = false;
+    }
+
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void fill() throws IOException {
+        int count = (int) Math.min(buffer.capacity(), readLimit - nextRead);
+        if (count <= 0) {
+            throw new EOFException(nextRead >= fileLength
+                    ? "Reading past the end of file at " + nextRead
+                    : "Reading past the read limit " + readLimit + " at " + nextRead);
+        }
+        buffer.clear();
+        if (engine == Engine.PREAD) {
+            input.readFully(nextRead, buffer.array(), 0, count);
+        } else {
+            if (!streamPositioned) {
+                input.seek(nextRead);
+                streamPositioned = true;
+            }
+            if (engine == Engine.BYTEBUFFER) {
+                readByteBuffer(count);
+            } else {
+                input.readFully(buffer.array(), 0, count);
+            }
+        }
+        buffer.position(0).limit(count);
+        bufferStart = nextRead;
+        nextRead += count;
+    }
+
+    private void readByteBuffer(int count) throws IOException {
+        buffer.limit(count);
+        try {
+            while (buffer.hasRemaining()) {
+                if (input.read(buffer) < 0) {
+                    throw new EOFException("Reading past the end of file at " + (nextRead + buffer.position()));
+                }
+            }
+        } catch (UnsupportedOperationException ex) {
+            if (buffer.position() != 0) {
+                throw ex;
+            }
+            engine = Engine.STREAM;
+            buffer = ByteBuffer.allocate(buffer.capacity());
+            input.readFully(buffer.array(), 0, count);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+}
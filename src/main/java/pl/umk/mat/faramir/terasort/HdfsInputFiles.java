@@ -0,0 +1,136 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Part files of HDFS input with record-aligned element positions.
+ * <p>
+ * Input is either a single file or a directory, of which files named {@code part*} are read in
+ * listing order. Elements are numbered across all files, so element {@code i} of the input is
+ * element {@code i - fileStart(f)} of file {@code f}. Every file has to consist of whole
+ * records; otherwise positions of all following records would be shifted, so such input is
+ * rejected when listed instead of failing (or silently reading garbage) in the middle of the sort.
+ */
+public final class HdfsInputFiles {
+    private final Path[] paths;
+    private final long[] sizes;
+    private final long[] fileStarts;
+
+    HdfsInputFiles(Path[] paths, long[] sizes) throws IOException {
+        if (paths.length != sizes.length) {
+            throw new IllegalArgumentException("Got " + paths.length + " paths, but " + sizes.length + " sizes");
+        }
+        this.paths = paths;
+        this.sizes = sizes;
+        this.fileStarts = new long[paths.length + 1];
+        for (int i = 0; i < paths.length; ++i) {
+            if (sizes[i] < 0 || sizes[i] % RecordBuffer.RECORD_LENGTH != 0) {
+                throw new IOException(String.format("Size of %s (%d bytes) is not a multiple of record length (%d bytes)",
+                        paths[i], sizes[i], RecordBuffer.RECORD_LENGTH));
+            }
+            fileStarts[i + 1] = fileStarts[i] + sizes[i] / RecordBuffer.RECORD_LENGTH;
+        }
+    }
+
+    /**
+     * Lists part files of {@code inputFile} with a single call to the name node.
+     */
+    public static HdfsInputFiles list(FileSystem hdfsFileSystem, String inputFile) throws IOException {
+        Path inputPath = new Path(inputFile);
+        FileStatus inputStatus = hdfsFileSystem.getFileStatus(inputPath);
+        FileStatus[] parts;
+        if (inputStatus.isDirectory()) {
+            parts = Arrays.stream(hdfsFileSystem.listStatus(inputPath))
+                    .filter(FileStatus::isFile)
+                    .filter(fs -> fs.getPath().getName().startsWith("part"))
+                    .toArray(FileStatus[]::new);
+        } else {
+            parts = new FileStatus[]{inputStatus};
+        }
+        return new HdfsInputFiles(
+                Arrays.stream(parts).map(FileStatus::getPath).toArray(Path[]::new),
+                Arrays.stream(parts).mapToLong(FileStatus::getLen).toArray());
+    }
+
+    /**
+     * Returns {@code [start, end)} elements of {@code part} when {@code elements} are split
+     * evenly into {@code parts} contiguous parts; the first {@code elements % parts} parts get
+     * one element more.
+     */
+    public static long[] evenSplit(long elements, int part, int parts) {
+        if (part < 0 || part >= parts) {
+            throw new IllegalArgumentException("Part " + part + " out of " + parts);
+        }
+        long size = elements / parts;
+        long reminder = elements % parts;
+        long start = part * size + Math.min(part, reminder);
+        return new long[]{start, start + size + (part < reminder ? 1 : 0)};
+    }
+
+    public int count() {
+        return paths.length;
+    }
+
+    public Path path(int file) {
+        return paths[file];
+    }
+
+    /**
+     * Returns length of {@code file} in bytes.
+     */
+    public long size(int file) {
+        return sizes[file];
+    }
+
+    /**
+     * Returns position of the first element of {@code file}; {@code fileStart(count())} is
+     * the number of elements of the input.
+     */
+    public long fileStart(int file) {
+        return fileStarts[file];
+    }
+
+    /**
+     * Returns total number of elements (records) of the input.
+     */
+    public long length() {
+        return fileStarts[paths.length];
+    }
+
+    /**
+     * Returns index of the file containing {@code element}.
+     */
+    public int fileOf(long element) {
+        if (element < 0 || element >= length()) {
+            throw new IllegalArgumentException("Element " + element + " is outside of input with " + length() + " elements");
+        }
+        int file = Arrays.binarySearch(fileStarts, element);
+        if (file < 0) {
+            return -file - 2;
+        }
+        // empty files start at the same position as the following one
+        while (fileStarts[file + 1] == element) {
+            ++file;
+        }
+        return file;
+    }
+
+    /**
+     * Checks that {@code ranges} (pairs of {@code [start, end)} element positions) are within the input.
+     */
+    public void checkRanges(long[] ranges) {
+        if (ranges.length % 2 != 0) {
+            throw new IllegalArgumentException("Ranges have odd number of positions: " + ranges.length);
+        }
+        for (int r = 0; r < ranges.length; r += 2) {
+            if (ranges[r] < 0 || ranges[r] > ranges[r + 1] || ranges[r + 1] > length()) {
+                throw new IllegalArgumentException(String.format("Range [%d, %d) is outside of input with %d elements",
+                        ranges[r], ranges[r + 1], length()));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.Locale;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Creates HDFS output files with options given by properties.
+ * <p>
+ * Standard TeraSort writes its output with replication 1, so that the benchmark measures
+ * sorting rather than the replication pipeline. Options not set keep the file system defaults:
+ * <ul>
+ * <li>{@code hdfs.outputReplication} - replication of output files,</li>
+ * <li>{@code hdfs.outputBlockSize} - HDFS block size of output files in bytes,</li>
+ * <li>{@code hdfs.outputChecksum} - checksum type ({@code CRC32C}, {@code CRC32} or {@code NULL})
+ * computed for every {@code hdfs.outputBytesPerChecksum} bytes (512),</li>
+ * <li>{@code hdfs.outputBufferSize} - records are gathered in a buffer of this size (8 MiB)
+ * and handed over to the HDFS stream in a single write instead of a call per record.</li>
+ * </ul>
+ */
+public final class HdfsOutputFiles {
+    private static final short REPLICATION = Short.parseShort(System.getProperty("hdfs.outputReplication", "0"));
+    private static final long BLOCK_SIZE = Long.parseLong(System.getProperty("hdfs.outputBlockSize", "0"));
+    private static final String CHECKSUM = System.getProperty("hdfs.outputChecksum", "");
+    private static final int BYTES_PER_CHECKSUM = Integer.parseInt(System.getProperty("hdfs.outputBytesPerChecksum", "512"));
+    private static final int BUFFER_SIZE = Integer.parseInt(System.getProperty("hdfs.outputBufferSize", "8388608"));
+
+    private HdfsOutputFiles() {
+    }
+
+    /**
+     * Returns description of output options for printing.
+     */
+    public static String configuration() {
+        return String.format(Locale.ENGLISH, "replication: %s, block size: %s, checksum: %s, buffer size: %d",
+                REPLICATION > 0 ? Short.toString(REPLICATION) : "default",
+                BLOCK_SIZE > 0 ? Long.toString(BLOCK_SIZE) : "default",
+                CHECKSUM.isEmpty() ? "default" : CHECKSUM.toUpperCase(Locale.ENGLISH) + "/" + BYTES_PER_CHECKSUM,
+                BUFFER_SIZE);
+    }
+
+    /**
+     * Creates (overwriting) {@code outputPath} and returns a buffered stream writing to it.
+     */
+    public static OutputStream create(FileSystem hdfsFileSystem, Path outputPath) throws IOException {
+        short replication = REPLICATION > 0 ? REPLICATION : hdfsFileSystem.getDefaultReplication(outputPath);
+        long blockSize = BLOCK_SIZE > 0 ? BLOCK_SIZE : hdfsFileSystem.getDefaultBlockSize(outputPath);
+        int streamBufferSize = hdfsFileSystem.getConf().getInt("io.file.buffer.size", 4096);
+
+        FSDataOutputStream output;
+        if (CHECKSUM.isEmpty()) {
+            output = hdfsFileSystem.create(outputPath, true, streamBufferSize, replication, blockSize);
+        } else {
+            Options.ChecksumOpt checksum = new Options.ChecksumOpt(
+                    DataChecksum.Type.valueOf(CHECKSUM.toUpperCase(Locale.ENGLISH)), BYTES_PER_CHECKSUM);
+            output = hdfsFileSystem.create(outputPath,
+                    FsPermission.getFileDefault().applyUMask(FsPermission.getUMask(hdfsFileSystem.getConf())),
+                    EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE),
+                    streamBufferSize, replication, blockSize, null, checksum);
+        }
+        return new BufferedOutputStream(output, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,117 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Reads ranges of records of HDFS input with several threads.
+ * <p>
+ * Input is a sequence of part files, with elements numbered across all of them. The records to
+ * read are split into {@code hdfs.readerThreads} contiguous parts. Every reader thread opens the
+ * part files of its own part with its own {@link HdfsBlockReader}, so several files (or several
+ * regions of one large file) are read at the same time. Every record is handed to the handler
+ * together with the state of its reader, and states are returned in the order of parts, as in
+ * {@link ParallelRecordReader}. A single reader runs in the calling thread.
+ */
+public final class HdfsParallelReader {
+    private static final int THREADS = Integer.parseInt(System.getProperty("hdfs.readerThreads", "1"));
+    private static final int BLOCK_RECORDS = 1024;
+
+    private HdfsParallelReader() {
+    }
+
+    public static int threads() {
+        return THREADS;
+    }
+
+    /**
+     * Reads records from {@code ranges} (pairs of {@code [start, end)} element positions) of {@code files}.
+     */
+    public static <S> List<S> read(FileSystem hdfsFileSystem, HdfsInputFiles files, long[] ranges,
+                                   Supplier<S> states, ParallelRecordReader.RecordHandler<S> handler)
+            throws IOException, InterruptedException {
+        files.checkRanges(ranges);
+        long elements = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            elements += ranges[r + 1] - ranges[r];
+        }
+        int parts = (int) Math.max(1, Math.min(THREADS, elements));
+        if (parts == 1) {
+            return List.of(readPart(hdfsFileSystem, files, ranges, states.get(), handler));
+        }
+
+        List<Callable<S>> readers = new ArrayList<>(parts);
+        for (int part = 0; part < parts; ++part) {
+            long[] partRanges = slice(ranges, elements * part / parts, elements * (part + 1) / parts);
+            readers.add(() -> readPart(hdfsFileSystem, files, partRanges, states.get(), handler));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            List<S> result = new ArrayList<>(parts);
+            for (Future<S> future : pool.invokeAll(readers)) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (ExecutionException ex) {
+            throw ParallelRecordReader.unwrap(ex);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns ranges covering records {@code [from, to)} counted over all {@code ranges}.
+     */
+    private static long[] slice(long[] ranges, long from, long to) {
+        List<Long> slice = new ArrayList<>();
+        long skipped = 0;
+        for (int r = 0; r < ranges.length && skipped < to; r += 2) {
+            long length = ranges[r + 1] - ranges[r];
+            long start = Math.max(from, skipped);
+            long end = Math.min(to, skipped + length);
+            if (start < end) {
+                slice.add(ranges[r] + start - skipped);
+                slice.add(ranges[r] + end - skipped);
+            }
+            skipped += length;
+        }
+        return slice.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static <S> S readPart(FileSystem hdfsFileSystem, HdfsInputFiles files, long[] ranges,
+                                  S state, ParallelRecordReader.RecordHandler<S> handler) throws IOException {
+        byte[] block = new byte[BLOCK_RECORDS * RecordBuffer.RECORD_LENGTH];
+        try (HdfsBlockReader input = new HdfsBlockReader()) {
+            int file = -1;
+            for (int r = 0; r < ranges.length; r += 2) {
+                long position = ranges[r];
+                while (position < ranges[r + 1]) {
+                    if (file < 0 || position < files.fileStart(file) || position >= files.fileStart(file + 1)) {
+                        file = files.fileOf(position);
+                        input.open(hdfsFileSystem.open(files.path(file)), files.size(file));
+                    }
+                    long end = Math.min(ranges[r + 1], files.fileStart(file + 1));
+                    input.seek((position - files.fileStart(file)) * RecordBuffer.RECORD_LENGTH,
+                            (end - files.fileStart(file)) * RecordBuffer.RECORD_LENGTH);
+                    while (position < end) {
+                        int count = (int) Math.min(BLOCK_RECORDS, end - position);
+                        input.readFully(block, 0, count * RecordBuffer.RECORD_LENGTH);
+                        for (int offset = 0; offset < count * RecordBuffer.RECORD_LENGTH; offset += RecordBuffer.RECORD_LENGTH) {
+                            handler.accept(state, block, offset);
+                        }
+                        position += count;
+                    }
+                }
+            }
+        }
+        return state;
+    }
+}
@@ -151,20 +151,10 @@ public class JavaTeraSort {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -0,0 +1,309 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Sorts records stored in {@link RecordBuffer} by their keys.
+ * <p>
+ * The 10-byte key of every record is extracted once into a packed primitive array
+ * of entries: an 8-byte key prefix followed by the 2-byte key suffix combined with
+ * the record index. Only these 16-byte entries are moved while sorting; records
+ * themselves are permuted when the resulting order is written out. Records with equal
+ * keys are ordered by their values afterwards, so the order is the same as sorting
+ * {@code Element} objects.
+ * <p>
+ * Entries are sorted by quicksort or, when {@code sort.algorithm=radix}, by in-place
+ * MSD radix sort on key bytes, which is close to linear for uniformly distributed keys.
+ * <p>
+ * With {@code sort.threads} greater than one, keys are extracted in parallel, entries are
+ * distributed by the first key byte and the resulting 256 ranges are sorted concurrently,
+ * so a single PCJ thread can use all cores of its node.
+ */
+public final class KeySorter {
+    private static final Algorithm ALGORITHM = Algorithm.valueOf(
+            System.getProperty("sort.algorithm", "quick").toUpperCase(Locale.ENGLISH));
+    private static final int THREADS = Integer.parseInt(System.getProperty("sort.threads", "1"));
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int RADIX_INSERTION_SORT_THRESHOLD = 64;
+    private static final int RADIX = 256;
+
+    enum Algorithm {
+        QUICK, RADIX
+    }
+
+    private final RecordBuffer records;
+    private final long[] entries;
+
+    private KeySorter(RecordBuffer records) {
+        this.records = records;
+        this.entries = new long[2 * records.size()];
+    }
+
+    /**
+     * Returns indices of records in ascending record order.
+     */
+    public static int[] sort(RecordBuffer records) {
+        return sort(records, THREADS);
+    }
+
+    /**
+     * Returns indices of records in ascending record order, using at most {@code threads} threads.
+     */
+    public static int[] sort(RecordBuffer records, int threads) {
+        KeySorter sorter = new KeySorter(records);
+        int size = records.size();
+        if (threads > 1 && size >= PARALLEL_SORT_THRESHOLD) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                sorter.parallelSort(pool, threads);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            sorter.extractKeys(0, size);
+            sorter.sortRange(0, size, 0);
+        }
+        return sorter.toOrder();
+    }
+
+    private void extractKeys(int from, int to) {
+        for (int i = from; i < to; ++i) {
+            entries[2 * i] = records.keyPrefix(i);
+            entries[2 * i + 1] = ((long) records.keySuffix(i) << 32) | i;
+        }
+    }
+
+    private void sortRange(int from, int to, int digit) {
+        if (ALGORITHM == Algorithm.RADIX) {
+            radixSort(from, to, digit);
+        } else {
+            quickSort(from, to);
+        }
+    }
+
+    private void parallelSort(ForkJoinPool pool, int threads) {
+        int size = records.size();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        int step = (size + threads - 1) / threads;
+        for (int from = 0; from < size; from += step) {
+            int start = from;
+            int end = Math.min(size, from + step);
+            tasks.add(pool.submit(() -> extractKeys(start, end)));
+        }
+        tasks.forEach(ForkJoinTask::join);
+        tasks.clear();
+
+        int[] bucketEnds = distribute(0, size, 0);
+        for (int b = 0, from = 0; b < RADIX; ++b) {
+            int start = from;
+            int end = bucketEnds[b];
+            if (end - start > 1) {
+                tasks.add(pool.submit(() -> sortRange(start, end, 1)));
+            }
+            from = end;
+        }
+        tasks.forEach(ForkJoinTask::join);
+    }
+
+    private int[] toOrder() {
+        int[] order = new int[entries.length / 2];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = (int) entries[2 * i + 1];
+        }
+        // keys are equal in TeraGen data only by accident, but skewed input can have long runs
+        int[] aux = null;
+        for (int from = 0, to; from < order.length; from = to) {
+            to = from + 1;
+            while (to < order.length && sameKey(from, to)) {
+                ++to;
+            }
+            if (to - from > INSERTION_SORT_THRESHOLD && aux == null) {
+                aux = new int[order.length];
+            }
+            if (to - from > 1) {
+                sortByRecord(order, aux, from, to);
+            }
+        }
+        return order;
+    }
+
+    private boolean sameKey(int i, int j) {
+        return entries[2 * i] == entries[2 * j]
+                && (entries[2 * i + 1] >>> 32) == (entries[2 * j + 1] >>> 32);
+    }
+
+    /**
+     * Merge sort of {@code order[from, to)} by whole records, so a run of {@code k} equal keys
+     * costs {@code O(k log k)} record comparisons.
+     */
+    private void sortByRecord(int[] order, int[] aux, int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSortByRecord(order, from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortByRecord(order, aux, from, mid);
+        sortByRecord(order, aux, mid, to);
+        if (records.compare(order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, aux, from, to - from);
+        for (int i = from, j = mid, k = from; k < to; ++k) {
+            if (j >= to || (i < mid && records.compare(aux[i], aux[j]) <= 0)) {
+                order[k] = aux[i++];
+            } else {
+                order[k] = aux[j++];
+            }
+        }
+    }
+
+    private void insertionSortByRecord(int[] order, int from, int to) {
+        for (int i = from + 1; i < to; ++i) {
+            int current = order[i];
+            int j = i - 1;
+            while (j >= from && records.compare(order[j], current) > 0) {
+                order[j + 1] = order[j];
+                --j;
+            }
+            order[j + 1] = current;
+        }
+    }
+
+    private int compare(int i, int j) {
+        int r = Long.compareUnsigned(entries[2 * i], entries[2 * j]);
+        if (r != 0) {
+            return r;
+        }
+        // suffix and record index are non-negative, so signed comparison is enough
+        return Long.compare(entries[2 * i + 1], entries[2 * j + 1]);
+    }
+
+    private int compareTo(int i, long prefix, long suffixAndIndex) {
+        int r = Long.compareUnsigned(entries[2 * i], prefix);
+        if (r != 0) {
+            return r;
+        }
+        return Long.compare(entries[2 * i + 1], suffixAndIndex);
+    }
+
+    private void swap(int i, int j) {
+        long prefix = entries[2 * i];
+        long suffixAndIndex = entries[2 * i + 1];
+        entries[2 * i] = entries[2 * j];
+        entries[2 * i + 1] = entries[2 * j + 1];
+        entries[2 * j] = prefix;
+        entries[2 * j + 1] = suffixAndIndex;
+    }
+
+    private void quickSort(int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int mid = (from + to) >>> 1;
+            int last = to - 1;
+            if (compare(mid, from) < 0) swap(mid, from);
+            if (compare(last, from) < 0) swap(last, from);
+            if (compare(last, mid) < 0) swap(last, mid);
+            long pivotPrefix = entries[2 * mid];
+            long pivotSuffixAndIndex = entries[2 * mid + 1];
+
+            int i = from;
+            int j = last;
+            while (i <= j) {
+                while (compareTo(i, pivotPrefix, pivotSuffixAndIndex) < 0) ++i;
+                while (compareTo(j, pivotPrefix, pivotSuffixAndIndex) > 0) --j;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // recurse into the smaller part to bound the stack depth
+            if (j + 1 - from < to - i) {
+                quickSort(from, j + 1);
+                from = i;
+            } else {
+                quickSort(i, to);
+                to = j + 1;
+            }
+        }
+        insertionSort(from, to);
+    }
+
+    /**
+     * American flag sort: distributes entries in place by key byte {@code digit}
+     * and recurses into every bucket with the next byte.
+     */
+    private void radixSort(int from, int to, int digit) {
+        if (to - from <= RADIX_INSERTION_SORT_THRESHOLD) {
+            insertionSort(from, to);
+            return;
+        }
+        if (digit == RecordBuffer.KEY_LENGTH) {
+            // whole keys are equal, entries differ only by record index
+            quickSort(from, to);
+            return;
+        }
+
+        int[] bucketEnds = distribute(from, to, digit);
+        for (int b = 0, start = from; b < RADIX; ++b) {
+            int end = bucketEnds[b];
+            if (end - start > 1) {
+                radixSort(start, end, digit + 1);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Reorders entries in place by key byte {@code digit}, returning end of every bucket.
+     */
+    private int[] distribute(int from, int to, int digit) {
+        int[] bucketEnds = new int[RADIX];
+        for (int i = from; i < to; ++i) {
+            ++bucketEnds[keyByte(i, digit)];
+        }
+        int[] bucketNext = new int[RADIX];
+        for (int b = 0, start = from; b < RADIX; ++b) {
+            bucketNext[b] = start;
+            start += bucketEnds[b];
+            bucketEnds[b] = start;
+        }
+
+        for (int b = 0; b < RADIX; ++b) {
+            while (bucketNext[b] < bucketEnds[b]) {
+                int i = bucketNext[b];
+                int target = keyByte(i, digit);
+                if (target == b) {
+                    ++bucketNext[b];
+                } else {
+                    swap(i, bucketNext[target]++);
+                }
+            }
+        }
+        return bucketEnds;
+    }
+
+    private int keyByte(int i, int digit) {
+        if (digit < Long.BYTES) {
+            return (int) (entries[2 * i] >>> (Long.SIZE - Byte.SIZE * (digit + 1))) & 0xFF;
+        }
+        return (int) (entries[2 * i + 1] >>> (Long.SIZE - Byte.SIZE * (digit - Long.BYTES + 3))) & 0xFF;
+    }
+
+    private void insertionSort(int from, int to) {
+        for (int i = from + 1; i < to; ++i) {
+            long prefix = entries[2 * i];
+            long suffixAndIndex = entries[2 * i + 1];
+            int j = i - 1;
+            while (j >= from && compareTo(j, prefix, suffixAndIndex) > 0) {
+                entries[2 * j + 2] = entries[2 * j];
+                entries[2 * j + 3] = entries[2 * j + 1];
+                --j;
+            }
+            entries[2 * j + 2] = prefix;
+            entries[2 * j + 3] = suffixAndIndex;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Writes consecutive records into a region of a file through memory-mapped windows.
+ * <p>
+ * Windows hold at most {@code windowElements} records and never more than 2 GB, the limit of
+ * a single mapping. A full window is rotated out: with {@code output.forceOnRotation=true} it is
+ * forced to storage right away; with {@code output.maxDirtyBytes} greater than zero rotated
+ * windows are kept until they exceed that many bytes and then forced oldest first, so
+ * writeback happens steadily instead of in a storm when the file is closed. Windows which do not
+ * have to be forced any more are unmapped, so the number of mapped bytes stays bounded as well.
+ * The bound is kept at window granularity.
+ */
+public class MappedRecordWriter implements RecordWriter {
+    private static final boolean FORCE_ON_ROTATION = Boolean.parseBoolean(System.getProperty("output.forceOnRotation", "false"));
+    private static final long MAX_DIRTY_BYTES = Long.parseLong(System.getProperty("output.maxDirtyBytes", "0"));
+    private static final long MAX_WINDOW_ELEMENTS = Integer.MAX_VALUE / RecordBuffer.RECORD_LENGTH;
+    private static final MethodHandle INVOKE_CLEANER = findCleaner();
+
+    private final FileChannel output;
+    private final long startPosition;
+    private final long elementCount;
+    private final long windowElements;
+    private final Deque<MappedByteBuffer> unforced;
+    private long unforcedBytes;
+    private MappedByteBuffer window;
+    private long writtenElements;
+    private long forcedWindows;
+    private long forceNanos;
+
+    public MappedRecordWriter(FileChannel output, long startPosition, long elementCount, long windowElements) {
+        this.output = output;
+        this.startPosition = startPosition;
+        this.elementCount = elementCount;
+        this.windowElements = Math.max(1, Math.min(windowElements, MAX_WINDOW_ELEMENTS));
+        this.unforced = new ArrayDeque<>();
+    }
+
+    public static String configuration() {
+        return String.format(Locale.ENGLISH, "force on rotation %b, max dirty bytes %d", FORCE_ON_ROTATION, MAX_DIRTY_BYTES);
+    }
+
+    @Override
+    public void write(RecordBuffer records, int index) throws IOException {
+        if (window == null || !window.hasRemaining()) {
+            rotate();
+            long size = Math.min(elementCount - writtenElements, windowElements) * RecordBuffer.RECORD_LENGTH;
+            window = output.map(FileChannel.MapMode.READ_WRITE,
+                    (startPosition + writtenElements) * RecordBuffer.RECORD_LENGTH,
+                    size);
+        }
+        records.get(index, window);
+        ++writtenElements;
+    }
+
+    @Override
+    public String statistics() {
+        return String.format(Locale.ENGLISH, "%d windows forced in %.7f seconds", forcedWindows, forceNanos / 1e9);
+    }
+
+    @Override
+    public void close() {
+        rotate();
+        while (!unforced.isEmpty()) {
+            unmap(unforced.pollFirst());
+        }
+        unforcedBytes = 0;
+    }
+
+    private void rotate() {
+        if (window == null) {
+            return;
+        }
+        if (FORCE_ON_ROTATION) {
+            force(window);
+            unmap(window);
+        } else if (MAX_DIRTY_BYTES > 0) {
+            unforced.addLast(window);
+            unforcedBytes += window.capacity();
+            while (unforcedBytes > MAX_DIRTY_BYTES) {
+                MappedByteBuffer oldest = unforced.pollFirst();
+                force(oldest);
+                unforcedBytes -= oldest.capacity();
+                unmap(oldest);
+            }
+        } else {
+            unmap(window);
+        }
+        window = null;
+    }
+
+    private void force(MappedByteBuffer buffer) {
+        long forceStart = System.nanoTime();
+        buffer.force();
+        forceNanos += System.nanoTime() - forceStart;
+        ++forcedWindows;
+    }
+
+    // unmapping right away releases address space and page references; the GC would do it much later
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } catch (Throwable ignored) {
+                // the buffer stays mapped until it is garbage collected
+            }
+        }
+    }
+
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package pl.umk.mat.faramir.terasort;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Reads a range of records of a local TeraSort file with several threads.
+ * <p>
+ * The range is split into {@code input.readerThreads} contiguous parts. Every reader thread
+ * maps its own windows of the file and copies records to a heap block in bulk, so there is no
+ * per-record file position bookkeeping, and hands every record to the handler together with
+ * its own state, e.g. its own set of buckets. States are returned in the order of parts, so
+ * concatenating them keeps the order of records in the file. A single reader runs in the
+ * calling thread.
+ * <p>
+ * Input engine is selected by {@code input.engine}:
+ * <ul>
+ * <li>{@code mmap} (default) maps windows of the file; with {@code input.readAhead} greater
+ * than zero, that many next windows are mapped and loaded into memory by a background thread
+ * while the current one is processed, so the reader does not stall on page faults,</li>
+ * <li>{@code read} reads blocks of {@code input.blockSize} bytes into a reused direct buffer,
+ * which avoids a page fault per 4 KB page of cold data,</li>
+ * <li>{@code direct} reads like {@code read}, but bypasses the page cache
+ * ({@code O_DIRECT}) where the file system supports it, so a read-once input does not
+ * evict other data; reads are aligned to the file system block size.</li>
+ * </ul>
+ * Reader threads are started from the calling thread and belong to its thread group.
+ */
+public final class ParallelRecordReader {
+    private static final int THREADS = Integer.parseInt(System.getProperty("input.readerThreads", "1"));
+    private static final Engine ENGINE = Engine.valueOf(
+            System.getProperty("input.engine", "mmap").toUpperCase(Locale.ENGLISH));
+    private static final int READ_BLOCK_SIZE = Integer.parseInt(System.getProperty("input.blockSize", "8388608"));
+    private static final int READ_AHEAD = Integer.parseInt(System.getProperty("input.readAhead", "0"));
+    private static final int BLOCK_RECORDS = 1024;
+
+    enum Engine {
+        MMAP, READ, DIRECT
+    }
+
+    @FunctionalInterface
+    public interface RecordHandler<S> {
+        void accept(S state, byte[] records, int offset);
+    }
+
+    private ParallelRecordReader() {
+    }
+
+    public static int threads() {
+        return THREADS;
+    }
+
+    public static String engine() {
+        return ENGINE.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Reads records {@code [startElement, endElement)} of {@code inputFile}, mapping at most
+     * {@code mapElements} records at once in every reader thread.
+     */
+    public static <S> List<S> read(String inputFile, long startElement, long endElement, long mapElements,
+                                   Supplier<S> states, RecordHandler<S> handler) throws IOException, InterruptedException {
+        Path path = Paths.get(inputFile);
+        int alignment = ENGINE == Engine.DIRECT ? (int) Files.getFileStore(path).getBlockSize() : 1;
+        try (FileChannel input = open(path)) {
+            long elements = endElement - startElement;
+            int parts = (int) Math.max(1, Math.min(THREADS, elements));
+            if (parts == 1) {
+                return List.of(readPart(input, startElement, endElement, mapElements, alignment, states.get(), handler));
+            }
+
+            List<Callable<S>> readers = new ArrayList<>(parts);
+            for (int part = 0; part < parts; ++part) {
+                long from = startElement + elements * part / parts;
+                long to = startElement + elements * (part + 1) / parts;
+                readers.add(() -> readPart(input, from, to, mapElements, alignment, states.get(), handler));
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(parts);
+            try {
+                List<S> result = new ArrayList<>(parts);
+                for (Future<S> future : pool.invokeAll(readers)) {
+                    result.add(future.get());
+                }
+                return result;
+            } catch (ExecutionException ex) {
+                throw unwrap(ex);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        if (ENGINE == Engine.DIRECT) {
+            try {
+                return FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+            } catch (UnsupportedOperationException | IOException ex) {
+                System.err.printf(Locale.ENGLISH, "Direct I/O is not available for %s (%s), reading through page cache%n", path, ex);
+            }
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    private static <S> S readPart(FileChannel input, long from, long to, long mapElements, int alignment,
+                                  S state, RecordHandler<S> handler) throws IOException, InterruptedException {
+        if (ENGINE == Engine.MMAP) {
+            return mapPart(input, from, to, mapElements, state, handler);
+        }
+        return readBlocks(input, from, to, alignment, state, handler);
+    }
+
+    private static <S> S mapPart(FileChannel input, long from, long to, long mapElements,
+                                 S state, RecordHandler<S> handler) throws IOException, InterruptedException {
+        ExecutorService prefetcher = READ_AHEAD > 0 ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "input-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        try {
+            Deque<Future<MappedByteBuffer>> prefetched = new ArrayDeque<>();
+            long nextWindowStart = from;
+            byte[] block = new byte[BLOCK_RECORDS * RecordBuffer.RECORD_LENGTH];
+            for (long windowStart = from; windowStart < to; windowStart += mapElements) {
+                MappedByteBuffer window;
+                if (prefetcher == null) {
+                    window = map(input, windowStart, Math.min(to, windowStart + mapElements));
+                } else {
+                    while (prefetched.size() <= READ_AHEAD && nextWindowStart < to) {
+                        long start = nextWindowStart;
+                        long end = Math.min(to, start + mapElements);
+                        prefetched.addLast(prefetcher.submit(() -> map(input, start, end).load()));
+                        nextWindowStart = end;
+                    }
+                    try {
+                        window = prefetched.pollFirst().get();
+                    } catch (ExecutionException ex) {
+                        throw unwrap(ex);
+                    }
+                }
+                while (window.hasRemaining()) {
+                    int length = Math.min(block.length, window.remaining());
+                    window.get(block, 0, length);
+                    for (int offset = 0; offset < length; offset += RecordBuffer.RECORD_LENGTH) {
+                        handler.accept(state, block, offset);
+                    }
+                }
+            }
+            return state;
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.shutdownNow();
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel input, long startElement, long endElement) throws IOException {
+        return input.map(FileChannel.MapMode.READ_ONLY,
+                startElement * RecordBuffer.RECORD_LENGTH,
+                (endElement - startElement) * RecordBuffer.RECORD_LENGTH);
+    }
+
+    static IOException unwrap(ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    private static <S> S readBlocks(FileChannel input, long from, long to, int alignment,
+                                    S state, RecordHandler<S> handler) throws IOException {
+        long end = to * RecordBuffer.RECORD_LENGTH;
+        // reads start at aligned position; bytes before the first record are skipped
+        long position = from * RecordBuffer.RECORD_LENGTH;
+        long filePosition = position - position % alignment;
+        int skip = (int) (position - filePosition);
+        int blockSize = Math.max(alignment, READ_BLOCK_SIZE - READ_BLOCK_SIZE % alignment);
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(blockSize + alignment).alignedSlice(alignment)
+                .limit(blockSize).slice();
+
+        // records may span blocks, so incomplete record is carried over to the next block
+        byte[] records = new byte[blockSize + RecordBuffer.RECORD_LENGTH];
+        int carried = 0;
+        while (filePosition < end) {
+            readBuffer.clear();
+            long needed = end - filePosition;
+            if (needed < blockSize) {
+                readBuffer.limit((int) Math.min(blockSize, (needed + alignment - 1) / alignment * alignment));
+            }
+            int read = input.read(readBuffer, filePosition);
+            if (read <= 0) {
+                throw new EOFException("Unexpected end of input at byte " + filePosition);
+            }
+            int usable = (int) Math.min(read, needed);
+            readBuffer.limit(usable).position(skip);
+            int length = readBuffer.remaining();
+            readBuffer.get(records, carried, length);
+            carried += length;
+
+            int complete = carried - carried % RecordBuffer.RECORD_LENGTH;
+            for (int offset = 0; offset < complete; offset += RecordBuffer.RECORD_LENGTH) {
+                handler.accept(state, records, offset);
+            }
+            System.arraycopy(records, complete, records, 0, carried - complete);
+            carried -= complete;
+
+            filePosition += read;
+            skip = 0;
+        }
+        return state;
+    }
+}
@@ -5,12 +5,10 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
-import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.pcj.PCJ;
@@ -37,13 +35,13 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
 
     @Storage(PcjTeraSortConcurrentSend.class)
     enum Vars {
-        pivots, buckets, finishedSending
+        pivots, buckets, sortedRuns, finishedSending
     }
 
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    @SuppressWarnings("serializable")
-    private List<Element> buckets = new LinkedList<>();
+    private ReceiveQueues buckets = new ReceiveQueues(PCJ.threadCount());
+    private SortedRuns sortedRuns = new SortedRuns();
     private boolean finishedSending;
 
     public static void main(String[] args) throws IOException {
@@ -67,12 +65,24 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
         String outputFileName = String.format("%s%s%05d", outputFilePrefix, outputFileSuffix, PCJ.myId());
         int sampleSize = Integer.parseInt(PCJ.getProperty("sampleSize"));
         int concurSendBucketSize = Integer.parseInt(System.getProperty("concurSendBucketSize", "100000"));
+        long concurSendMaxInFlightBytes = Long.parseLong(System.getProperty("concurSendMaxInFlightBytes",
+                Long.toString(4L * concurSendBucketSize * RecordBuffer.RECORD_LENGTH)));
+        boolean concurSendSortOnReceive = Boolean.parseBoolean(System.getProperty("concurSendSortOnReceive", "false"));
+        boolean concurSendPipeline = Boolean.parseBoolean(System.getProperty("concurSendPipeline", "false"));
 
         if (PCJ.myId() == 0) {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output file prefix: %s%n", outputFilePrefix);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Reader threads: %d (%s input engine)%n",
+                    ParallelRecordReader.threads(), ParallelRecordReader.engine());
             System.out.printf(Locale.ENGLISH, "ConcurSend bucket size: %d%n", concurSendBucketSize);
+            System.out.printf(Locale.ENGLISH, "ConcurSend max in-flight bytes per destination: %d%n", concurSendMaxInFlightBytes);
+            System.out.printf(Locale.ENGLISH, "ConcurSend sort on receive: %b (%d threads)%n", concurSendSortOnReceive, SortedRuns.threads());
+            System.out.printf(Locale.ENGLISH, "Sorted runs memory budget: %d, max queued bytes: %d%n",
+                    RunStore.memoryBudget(), SortedRuns.maxQueuedBytes());
+            System.out.printf(Locale.ENGLISH, "ConcurSend pipeline: %b (%s)%n", concurSendPipeline, RecordPipeline.configuration());
+            System.out.printf(Locale.ENGLISH, "Scratch directories: %d%n", ScratchDirs.count());
 
             String namePrefix = new File(outputFilePrefix).getName() + outputFileSuffix;
 
@@ -144,44 +154,50 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            List<PcjFuture<Void>> sendFutures = new LinkedList<>();
-            BiConsumer<List<Element>, Integer> sender = (bucket, bucketNo) -> {
-                if (bucketNo != PCJ.myId()) {
-                    PcjFuture<Void> future = PCJ.asyncAt(bucketNo, () -> {
-                        LinkedList<Element> local = PCJ.getLocal(Vars.buckets);
-                        synchronized (local) {
-                            local.addAll(bucket);
+            int myId = PCJ.myId();
+            BiFunction<Integer, byte[], PcjFuture<Void>> transport = (bucketNo, bucket) -> {
+                if (bucketNo != myId) {
+                    return PCJ.asyncAt(bucketNo, () -> {
+                        if (concurSendSortOnReceive) {
+                            SortedRuns local = PCJ.getLocal(Vars.sortedRuns);
+                            local.add(bucket);
+                        } else {
+                            ReceiveQueues local = PCJ.getLocal(Vars.buckets);
+                            local.add(myId, bucket);
                         }
                     });
-                    sendFutures.add(future);
+                }
+                if (concurSendSortOnReceive) {
+                    sortedRuns.add(bucket);
                 } else {
-                    synchronized (buckets) {
-                        buckets.addAll(bucket);
-                    }
+                    buckets.add(myId, bucket);
                 }
+                return null;
             };
             // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                List<Element> bucket = localBuckets[bucketNo];
-                bucket.add(e);
-                if (bucket.size() == concurSendBucketSize) {
-                    sender.accept(bucket, bucketNo);
-                    bucket.clear();
-                }
+            RecordPipeline pipeline = null;
+            List<ChunkSender> senders;
+            if (concurSendPipeline) {
+                // readers only pack records; bucketing and sending run in own pipeline stages
+                ChunkSender sender = new ChunkSender(router.bucketCount(), concurSendBucketSize, concurSendMaxInFlightBytes, transport);
+                pipeline = new RecordPipeline(router, sender);
+                ParallelRecordReader.read(inputFile, startElement, endElement,
+                        MEMORY_MAP_ELEMENT_COUNT,
+                        pipeline::producer,
+                        RecordPipeline.Producer::add)
+                        .forEach(RecordPipeline.Producer::flush);
+                senders = List.of(sender);
+            } else {
+                // every reader thread sends through own sender, so they share the in-flight credit
+                long maxInFlightBytes = concurSendMaxInFlightBytes / ParallelRecordReader.threads();
+                senders = ParallelRecordReader.read(inputFile, startElement, endElement,
+                        MEMORY_MAP_ELEMENT_COUNT,
+                        () -> new ChunkSender(router.bucketCount(), concurSendBucketSize, maxInFlightBytes, transport),
+                        (sender, records, offset) -> sender.add(router.bucketOf(records, offset), records, offset));
             }
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
@@ -190,12 +206,16 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                sender.accept(localBuckets[i], i);
-                localBuckets[i].clear();
+            if (pipeline != null) {
+                pipeline.finish();
+                System.out.printf(Locale.ENGLISH, "Thread %d pipeline stages: %s%n", PCJ.myId(), pipeline.report());
             }
-            sendFutures.forEach(PcjFuture::get);
+            senders.forEach(ChunkSender::finish);
             PCJ.asyncBroadcast(true, Vars.finishedSending);
+            System.out.printf(Locale.ENGLISH, "Thread %d was blocked on send credits %d times for %.7f seconds%n",
+                    PCJ.myId(),
+                    senders.stream().mapToLong(sender -> sender.credits().blockedCount()).sum(),
+                    senders.stream().mapToLong(sender -> sender.credits().blockedNanos()).sum() / 1e9);
             System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
                     PCJ.myId(),
                     (System.nanoTime() - sendingStart) / 1e9);
@@ -208,12 +228,32 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = buckets.toArray(new Element[0]);
-        Arrays.sort(sortedBuckets);
+        // with sort on receive only the last runs are still being sorted; they are merged while saving
+        RecordBuffer records = null;
+        int[] sortedOrder = null;
+        RunStore runs = null;
+        long sortedCount;
+        if (concurSendSortOnReceive) {
+            runs = sortedRuns.awaitRuns();
+            sortedCount = runs.size();
+            System.out.printf(Locale.ENGLISH, "Thread %d was blocked on sorting queue for %.7f seconds%n",
+                    PCJ.myId(), sortedRuns.blockedNanos() / 1e9);
+            if (runs.spilledRuns() > 0) {
+                System.out.printf(Locale.ENGLISH, "Thread %d spilled %d bytes into %d runs in %.7f seconds%n",
+                        PCJ.myId(),
+                        runs.spilledBytes(),
+                        runs.spilledRuns(),
+                        runs.spillNanos() / 1e9);
+            }
+        } else {
+            records = buckets.drainTo(new RecordBuffer());
+            sortedOrder = records.sort();
+            sortedCount = records.size();
+        }
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedCount,
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -223,12 +263,23 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
 
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         try (TeraFileOutput output = new TeraFileOutput(outputFileName)) {
-            output.writeElements(sortedBuckets);
+            if (runs != null) {
+                output.writeRuns(runs.merger());
+            } else {
+                output.writeRecords(records, sortedOrder);
+            }
+        }
+        if (records != null) {
+            records.close();
         }
+        if (runs != null && runs.spilledRuns() > 0) {
+            System.out.printf(Locale.ENGLISH, "Thread %d scratch I/O: %s%n", PCJ.myId(), ScratchDirs.report());
+        }
+        sortedRuns.close();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedCount,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -288,12 +339,7 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
         }
 
         public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
-                minElementPos = input.position() / recordLength;
-                maxElementPos = minElementPos + size / recordLength;
-            }
+            mapIfNeeded();
             mappedByteBuffer.get(tempKeyBytes);
             mappedByteBuffer.get(tempValueBytes);
 
@@ -301,25 +347,39 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void mapIfNeeded() throws IOException {
+            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
+                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
+                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
+                minElementPos = input.position() / recordLength;
+                maxElementPos = minElementPos + size / recordLength;
+            }
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
-        private final BufferedOutputStream output;
+        private final OutputStream output;
 
         public TeraFileOutput(String outputFile) throws FileNotFoundException {
-            output = new BufferedOutputStream(new FileOutputStream(outputFile, false));
+            output = PipelinedOutputStream.wrap(new BufferedOutputStream(new FileOutputStream(outputFile, false)));
         }
 
-        public void writeElement(Element element) throws IOException {
-            output.write(element.getKey().value);
-            output.write(element.getValue().value);
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
+            try {
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
         }
 
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRuns(RunMerger merger) throws UncheckedIOException {
             try {
-                for (Element element : elements) {
-                    writeElement(element);
-                }
+                merger.writeTo(output);
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
             }
@@ -341,20 +401,10 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -400,6 +450,12 @@ public class PcjTeraSortConcurrentSend implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
@@ -1,8 +1,5 @@
 package pl.umk.mat.faramir.terasort;
 
-import org.apache.hadoop.fs.ContentSummary;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.pcj.PCJ;
@@ -17,12 +14,10 @@ import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
-import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -43,14 +38,16 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
 
     @Storage(PcjTeraSortHdfsConcurrentSend.class)
     enum Vars {
-        pivots, buckets, finishedSending
+        pivots, buckets, sortedRuns, finishedSending, hosts, splits
     }
 
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    @SuppressWarnings("serializable")
-    private List<Element> buckets = new LinkedList<>();
+    private ReceiveQueues buckets = new ReceiveQueues(PCJ.threadCount());
+    private SortedRuns sortedRuns = new SortedRuns();
     private boolean finishedSending;
+    private String[] hosts = new String[PCJ.threadCount()];
+    private long[][] splits;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
@@ -80,13 +77,28 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
         String outputDir = PCJ.getProperty("outputFile");
         String outputFile = String.format("%s/part%05d", outputDir, PCJ.myId());
         int sampleSize = Integer.parseInt(PCJ.getProperty("sampleSize"));
+        boolean hdfsLocalityAwareSplits = Boolean.parseBoolean(System.getProperty("hdfsLocalityAwareSplits", "false"));
         int concurSendBucketSize = Integer.parseInt(System.getProperty("concurSendBucketSize", "100000"));
+        long concurSendMaxInFlightBytes = Long.parseLong(System.getProperty("concurSendMaxInFlightBytes",
+                Long.toString(4L * concurSendBucketSize * RecordBuffer.RECORD_LENGTH)));
+        boolean concurSendSortOnReceive = Boolean.parseBoolean(System.getProperty("concurSendSortOnReceive", "false"));
+        boolean concurSendPipeline = Boolean.parseBoolean(System.getProperty("concurSendPipeline", "false"));
 
         if (PCJ.myId() == 0) {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output dir: %s%n", outputDir);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Locality-aware splits: %b%n", hdfsLocalityAwareSplits);
+            System.out.printf(Locale.ENGLISH, "HDFS read engine: %s, block size: %d, reader threads: %d%n",
+                    HdfsBlockReader.engine(), HdfsBlockReader.blockSize(), HdfsParallelReader.threads());
+            System.out.printf(Locale.ENGLISH, "HDFS output %s%n", HdfsOutputFiles.configuration());
             System.out.printf(Locale.ENGLISH, "ConcurSend bucket size: %d%n", concurSendBucketSize);
+            System.out.printf(Locale.ENGLISH, "ConcurSend max in-flight bytes per destination: %d%n", concurSendMaxInFlightBytes);
+            System.out.printf(Locale.ENGLISH, "ConcurSend sort on receive: %b (%d threads)%n", concurSendSortOnReceive, SortedRuns.threads());
+            System.out.printf(Locale.ENGLISH, "Sorted runs memory budget: %d, max queued bytes: %d%n",
+                    RunStore.memoryBudget(), SortedRuns.maxQueuedBytes());
+            System.out.printf(Locale.ENGLISH, "ConcurSend pipeline: %b (%s)%n", concurSendPipeline, RecordPipeline.configuration());
+            System.out.printf(Locale.ENGLISH, "Scratch directories: %d%n", ScratchDirs.count());
 
             hdfsFileSystem.delete(new Path(outputDir), true);
         }
@@ -98,25 +110,37 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
         try (TeraFileInput input = new TeraFileInput(hdfsFileSystem, inputFile)) {
             long totalElements = input.length();
 
-            long localElementsCount = totalElements / PCJ.threadCount();
-            long reminderElements = totalElements - localElementsCount * PCJ.threadCount();
-            if (PCJ.myId() < reminderElements) {
-                ++localElementsCount;
-            }
+            // every thread read own portion of input file
+            long[] split = HdfsInputFiles.evenSplit(totalElements, PCJ.myId(), PCJ.threadCount());
+            long startElement = split[0];
+            long endElement = split[1];
+            long localElementsCount = endElement - startElement;
 
             if (PCJ.myId() == 0) {
                 System.out.printf(Locale.ENGLISH, "Total elements to sort: %d%n", totalElements);
                 System.out.printf(Locale.ENGLISH, "Each thread reads about: %d%n", localElementsCount);
             }
 
-            // every thread read own portion of input file
-            long startElement = PCJ.myId() * (totalElements / PCJ.threadCount()) + Math.min(PCJ.myId(), reminderElements);
-            long endElement = startElement + localElementsCount;
+            long[] ranges = {startElement, endElement};
+            if (hdfsLocalityAwareSplits) {
+                // read (whenever possible) blocks stored on own node instead of the even split
+                PCJ.put(SplitPlanner.localHost(), 0, Vars.hosts, PCJ.myId());
+                if (PCJ.myId() == 0) {
+                    PCJ.waitFor(Vars.hosts, PCJ.threadCount());
+                    SplitPlanner.Plan plan = SplitPlanner.plan(hdfsFileSystem, input.files(), hosts);
+                    System.out.printf(Locale.ENGLISH, "Elements read locally: %d (%.2f%%)%n",
+                            plan.localElements(), 100.0 * plan.localElements() / Math.max(plan.totalElements(), 1));
+                    PCJ.broadcast(plan.ranges(), Vars.splits);
+                }
+                PCJ.waitFor(Vars.splits);
+                ranges = splits[PCJ.myId()];
+            }
 
             // generate pivots (a unique set of keys at random positions: k0<k1<k2<...<k(n-1))
             int samplesByThread = (sampleSize + PCJ.threadCount() - (PCJ.myId() + 1)) / PCJ.threadCount();
 
-            input.seek(startElement);
+            long sampleStart = ranges.length > 0 ? ranges[0] : startElement;
+            input.seek(sampleStart, Math.min(input.length(), sampleStart + samplesByThread));
             for (int i = 0; i < samplesByThread; ++i) {
                 Element pivot = input.readElement();
                 pivots.add(pivot);
@@ -146,44 +170,48 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            List<PcjFuture<Void>> sendFutures = new LinkedList<>();
-            BiConsumer<List<Element>, Integer> sender = (bucket, bucketNo) -> {
-                if (bucketNo != PCJ.myId()) {
-                    PcjFuture<Void> future = PCJ.asyncAt(bucketNo, () -> {
-                        LinkedList<Element> local = PCJ.getLocal(Vars.buckets);
-                        synchronized (local) {
-                            local.addAll(bucket);
+            int myId = PCJ.myId();
+            BiFunction<Integer, byte[], PcjFuture<Void>> transport = (bucketNo, bucket) -> {
+                if (bucketNo != myId) {
+                    return PCJ.asyncAt(bucketNo, () -> {
+                        if (concurSendSortOnReceive) {
+                            SortedRuns local = PCJ.getLocal(Vars.sortedRuns);
+                            local.add(bucket);
+                        } else {
+                            ReceiveQueues local = PCJ.getLocal(Vars.buckets);
+                            local.add(myId, bucket);
                         }
                     });
-                    sendFutures.add(future);
+                }
+                if (concurSendSortOnReceive) {
+                    sortedRuns.add(bucket);
                 } else {
-                    synchronized (buckets) {
-                        buckets.addAll(bucket);
-                    }
+                    buckets.add(myId, bucket);
                 }
+                return null;
             };
             // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                List<Element> bucket = localBuckets[bucketNo];
-                bucket.add(e);
-                if (bucket.size() == concurSendBucketSize) {
-                    sender.accept(bucket, bucketNo);
-                    bucket.clear();
-                }
+            RecordPipeline pipeline = null;
+            List<ChunkSender> senders;
+            if (concurSendPipeline) {
+                // readers only pack records; bucketing and sending run in own pipeline stages
+                ChunkSender sender = new ChunkSender(router.bucketCount(), concurSendBucketSize, concurSendMaxInFlightBytes, transport);
+                pipeline = new RecordPipeline(router, sender);
+                HdfsParallelReader.read(hdfsFileSystem, input.files(), ranges,
+                        pipeline::producer,
+                        RecordPipeline.Producer::add)
+                        .forEach(RecordPipeline.Producer::flush);
+                senders = List.of(sender);
+            } else {
+                // every reader thread sends through own sender, so they share the in-flight credit
+                long maxInFlightBytes = concurSendMaxInFlightBytes / HdfsParallelReader.threads();
+                senders = HdfsParallelReader.read(hdfsFileSystem, input.files(), ranges,
+                        () -> new ChunkSender(router.bucketCount(), concurSendBucketSize, maxInFlightBytes, transport),
+                        (sender, records, offset) -> sender.add(router.bucketOf(records, offset), records, offset));
             }
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
@@ -192,12 +220,16 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                sender.accept(localBuckets[i], i);
-                localBuckets[i].clear();
+            if (pipeline != null) {
+                pipeline.finish();
+                System.out.printf(Locale.ENGLISH, "Thread %d pipeline stages: %s%n", PCJ.myId(), pipeline.report());
             }
-            sendFutures.forEach(PcjFuture::get);
+            senders.forEach(ChunkSender::finish);
             PCJ.asyncBroadcast(true, Vars.finishedSending);
+            System.out.printf(Locale.ENGLISH, "Thread %d was blocked on send credits %d times for %.7f seconds%n",
+                    PCJ.myId(),
+                    senders.stream().mapToLong(sender -> sender.credits().blockedCount()).sum(),
+                    senders.stream().mapToLong(sender -> sender.credits().blockedNanos()).sum() / 1e9);
             System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
                     PCJ.myId(),
                     (System.nanoTime() - sendingStart) / 1e9);
@@ -210,12 +242,32 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = buckets.toArray(new Element[0]);
-        Arrays.sort(sortedBuckets);
+        // with sort on receive only the last runs are still being sorted; they are merged while saving
+        RecordBuffer records = null;
+        int[] sortedOrder = null;
+        RunStore runs = null;
+        long sortedCount;
+        if (concurSendSortOnReceive) {
+            runs = sortedRuns.awaitRuns();
+            sortedCount = runs.size();
+            System.out.printf(Locale.ENGLISH, "Thread %d was blocked on sorting queue for %.7f seconds%n",
+                    PCJ.myId(), sortedRuns.blockedNanos() / 1e9);
+            if (runs.spilledRuns() > 0) {
+                System.out.printf(Locale.ENGLISH, "Thread %d spilled %d bytes into %d runs in %.7f seconds%n",
+                        PCJ.myId(),
+                        runs.spilledBytes(),
+                        runs.spilledRuns(),
+                        runs.spillNanos() / 1e9);
+            }
+        } else {
+            records = buckets.drainTo(new RecordBuffer());
+            sortedOrder = records.sort();
+            sortedCount = records.size();
+        }
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedCount,
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -227,17 +279,32 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
 
         while (true) {
             try (TeraFileOutput output = new TeraFileOutput(hdfsFileSystem, outputFile)) {
-                output.writeElements(sortedBuckets);
+                if (runs != null) {
+                    output.writeRuns(runs.merger());
+                } else {
+                    output.writeRecords(records, sortedOrder);
+                }
                 break;
             } catch (Exception e) {
+                if (runs != null && !runs.mergeable()) {
+                    // runs kept in memory are released while they are written, so they cannot be written again
+                    throw e;
+                }
                 System.err.println("Exception " + e.toString() + " on Thread " + PCJ.myId() + ". Retrying after 5s.");
                 Thread.sleep(5000);
             }
         }
+        if (records != null) {
+            records.close();
+        }
+        if (runs != null && runs.spilledRuns() > 0) {
+            System.out.printf(Locale.ENGLISH, "Thread %d scratch I/O: %s%n", PCJ.myId(), ScratchDirs.report());
+        }
+        sortedRuns.close();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedCount,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -261,52 +328,29 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
         private static final int keyLength = 10;
         private static final int valueLength = recordLength - keyLength;
         private final FileSystem hdfsFileSystem;
-        private final Path[] inputPaths;
-        private final long[] inputFileSizes;
-        private final long length;
+        private final HdfsInputFiles files;
         private final byte[] tempKeyBytes;
         private final byte[] tempValueBytes;
-        private FSDataInputStream input;
+        private final HdfsBlockReader input;
         private int inputIndex;
         private long currentElementPos;
         private long minElementPos;
         private long maxElementPos;
+        private long endElementPos;
 
         public TeraFileInput(FileSystem hdfsFileSystem, String inputFile) throws IOException {
             this.hdfsFileSystem = hdfsFileSystem;
-            Path inputPath = new Path(inputFile);
-            if (hdfsFileSystem.getFileStatus(inputPath).isDirectory()) {
-                inputPaths = Arrays.stream(hdfsFileSystem.listStatus(inputPath))
-                        .filter(FileStatus::isFile)
-                        .filter(fs -> fs.getPath().getName().startsWith("part"))
-                        .map(FileStatus::getPath)
-                        .toArray(Path[]::new);
-
-                inputFileSizes = Arrays.stream(inputPaths)
-                        .map(f -> {
-                            try {
-                                return hdfsFileSystem.getContentSummary(f);
-                            } catch (IOException e) {
-                                throw new UncheckedIOException(e);
-                            }
-                        })
-                        .mapToLong(ContentSummary::getLength).toArray();
-
-                length = Arrays.stream(inputFileSizes).sum() / recordLength;
-            } else {
-                inputPaths = new Path[]{inputPath};
-                inputFileSizes = new long[]{hdfsFileSystem.getContentSummary(inputPath).getLength()};
-                length = inputFileSizes[0];
-            }
+            this.files = HdfsInputFiles.list(hdfsFileSystem, inputFile);
 
             tempKeyBytes = new byte[keyLength];
             tempValueBytes = new byte[valueLength];
 
-            input = null;
+            input = new HdfsBlockReader();
             inputIndex = -1;
             currentElementPos = 0;
             minElementPos = 0;
             maxElementPos = 0;
+            endElementPos = Long.MAX_VALUE;
         }
 
         @Override
@@ -315,48 +359,55 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
         }
 
         public long length() {
-            return length;
+            return files.length();
+        }
+
+        public HdfsInputFiles files() {
+            return files;
         }
 
         public void seek(long pos) throws IOException {
+            seek(pos, Long.MAX_VALUE);
+        }
+
+        /**
+         * Moves to element {@code pos}; elements from {@code endPos} on are not read from HDFS.
+         */
+        public void seek(long pos, long endPos) throws IOException {
+            endElementPos = endPos;
             if (pos < minElementPos || pos >= maxElementPos) {
-                long cur = 0L;
-                long p = pos * recordLength;
-                for (int i = 0; i < inputFileSizes.length; ++i) {
-                    cur += inputFileSizes[i];
-                    if (p < cur) {
-                        inputIndex = i;
-                        minElementPos = (cur - inputFileSizes[i]) / recordLength;
-                        maxElementPos = cur / recordLength;
-                        break;
-                    }
-                }
-                if (input != null) {
-                    input.close();
-                }
-                input = hdfsFileSystem.open(inputPaths[inputIndex]);
+                inputIndex = files.fileOf(pos);
+                minElementPos = files.fileStart(inputIndex);
+                maxElementPos = files.fileStart(inputIndex + 1);
+                input.open(hdfsFileSystem.open(files.path(inputIndex)), files.size(inputIndex));
             }
-            input.seek((pos - minElementPos) * recordLength);
+            input.seek((pos - minElementPos) * recordLength, readLimit());
             currentElementPos = pos;
         }
 
         public Element readElement() throws IOException {
-            if (currentElementPos >= maxElementPos) {
-                inputIndex++;
-                minElementPos = maxElementPos;
-                maxElementPos += inputFileSizes[inputIndex] / recordLength;
-                if (input != null) {
-                    input.close();
-                }
-                input = hdfsFileSystem.open(inputPaths[inputIndex]);
-            }
+            openNextIfNeeded();
 
-            input.readFully(tempKeyBytes);
-            input.readFully(tempValueBytes);
+            input.readFully(tempKeyBytes, 0, keyLength);
+            input.readFully(tempValueBytes, 0, valueLength);
             currentElementPos++;
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void openNextIfNeeded() throws IOException {
+            if (currentElementPos >= maxElementPos) {
+                inputIndex = files.fileOf(currentElementPos);
+                minElementPos = files.fileStart(inputIndex);
+                maxElementPos = files.fileStart(inputIndex + 1);
+                input.open(hdfsFileSystem.open(files.path(inputIndex)), files.size(inputIndex));
+                input.seek(0, readLimit());
+            }
+        }
+
+        private long readLimit() {
+            return (Math.min(endElementPos, maxElementPos) - minElementPos) * recordLength;
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
@@ -364,22 +415,24 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
 
         public TeraFileOutput(FileSystem hdfsFileSystem, String outputFile) throws IOException {
             Path outputPath = new Path(outputFile);
-            output = hdfsFileSystem.create(outputPath, true);
+            output = PipelinedOutputStream.wrap(HdfsOutputFiles.create(hdfsFileSystem, outputPath));
         }
 
-        public void writeElement(Element element) throws IOException {
-            byte[] key = element.getKey().value;
-            output.write(key, 0, key.length);
-
-            byte[] value = element.getValue().value;
-            output.write(value, 0, value.length);
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
+            try {
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record, 0, record.length);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
         }
 
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRuns(RunMerger merger) throws UncheckedIOException {
             try {
-                for (Element element : elements) {
-                    writeElement(element);
-                }
+                merger.writeTo(output);
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
             }
@@ -401,20 +454,10 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -460,6 +503,12 @@ public class PcjTeraSortHdfsConcurrentSend implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
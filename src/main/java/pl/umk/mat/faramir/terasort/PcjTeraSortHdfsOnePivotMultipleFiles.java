@@ -7,8 +7,6 @@ import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
@@ -16,9 +14,7 @@ import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import org.apache.hadoop.fs.ContentSummary;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
+import java.util.stream.Stream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.pcj.PCJ;
@@ -40,12 +36,14 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
 
     @Storage(PcjTeraSortHdfsOnePivotMultipleFiles.class)
     enum Vars {
-        pivots, buckets
+        pivots, buckets, hosts, splits
     }
 
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    private Element[][] buckets;
+    private byte[][] buckets;
+    private String[] hosts = new String[PCJ.threadCount()];
+    private long[][] splits;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
@@ -75,11 +73,16 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         String outputDir = PCJ.getProperty("outputFile");
         String outputFile = String.format("%s/part%05d", outputDir, PCJ.myId());
         int sampleSize = Integer.parseInt(PCJ.getProperty("sampleSize"));
+        boolean hdfsLocalityAwareSplits = Boolean.parseBoolean(System.getProperty("hdfsLocalityAwareSplits", "false"));
 
         if (PCJ.myId() == 0) {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output dir: %s%n", outputDir);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Locality-aware splits: %b%n", hdfsLocalityAwareSplits);
+            System.out.printf(Locale.ENGLISH, "HDFS read engine: %s, block size: %d, reader threads: %d%n",
+                    HdfsBlockReader.engine(), HdfsBlockReader.blockSize(), HdfsParallelReader.threads());
+            System.out.printf(Locale.ENGLISH, "HDFS output %s%n", HdfsOutputFiles.configuration());
 
             hdfsFileSystem.delete(new Path(outputDir), true);
         }
@@ -91,25 +94,37 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         try (TeraFileInput input = new TeraFileInput(hdfsFileSystem, inputFile)) {
             long totalElements = input.length();
 
-            long localElementsCount = totalElements / PCJ.threadCount();
-            long reminderElements = totalElements - localElementsCount * PCJ.threadCount();
-            if (PCJ.myId() < reminderElements) {
-                ++localElementsCount;
-            }
+            // every thread read own portion of input file
+            long[] split = HdfsInputFiles.evenSplit(totalElements, PCJ.myId(), PCJ.threadCount());
+            long startElement = split[0];
+            long endElement = split[1];
+            long localElementsCount = endElement - startElement;
 
             if (PCJ.myId() == 0) {
                 System.out.printf(Locale.ENGLISH, "Total elements to sort: %d%n", totalElements);
                 System.out.printf(Locale.ENGLISH, "Each thread reads about: %d%n", localElementsCount);
             }
 
-            // every thread read own portion of input file
-            long startElement = PCJ.myId() * (totalElements / PCJ.threadCount()) + Math.min(PCJ.myId(), reminderElements);
-            long endElement = startElement + localElementsCount;
+            long[] ranges = {startElement, endElement};
+            if (hdfsLocalityAwareSplits) {
+                // read (whenever possible) blocks stored on own node instead of the even split
+                PCJ.put(SplitPlanner.localHost(), 0, Vars.hosts, PCJ.myId());
+                if (PCJ.myId() == 0) {
+                    PCJ.waitFor(Vars.hosts, PCJ.threadCount());
+                    SplitPlanner.Plan plan = SplitPlanner.plan(hdfsFileSystem, input.files(), hosts);
+                    System.out.printf(Locale.ENGLISH, "Elements read locally: %d (%.2f%%)%n",
+                            plan.localElements(), 100.0 * plan.localElements() / Math.max(plan.totalElements(), 1));
+                    PCJ.broadcast(plan.ranges(), Vars.splits);
+                }
+                PCJ.waitFor(Vars.splits);
+                ranges = splits[PCJ.myId()];
+            }
 
             // generate pivots (a unique set of keys at random positions: k0<k1<k2<...<k(n-1))
             int samplesByThread = (sampleSize + PCJ.threadCount() - (PCJ.myId() + 1)) / PCJ.threadCount();
 
-            input.seek(startElement);
+            long sampleStart = ranges.length > 0 ? ranges[0] : startElement;
+            input.seek(sampleStart, Math.min(input.length(), sampleStart + samplesByThread));
             for (int i = 0; i < samplesByThread; ++i) {
                 Element pivot = input.readElement();
                 pivots.add(pivot);
@@ -139,27 +154,17 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            buckets = new Element[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
+            buckets = new byte[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
             PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                localBuckets[bucketNo].add(e);
-            }
+            // for each element in own data: put element in proper bucket (every reader thread has own buckets)
+            List<RecordBuffer[]> readerBuckets = HdfsParallelReader.read(hdfsFileSystem, input.files(), ranges,
+                    () -> Stream.generate(RecordBuffer::new).limit(router.bucketCount()).toArray(RecordBuffer[]::new),
+                    (localBuckets, records, offset) -> localBuckets[router.bucketOf(records, offset)].add(records, offset));
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
 
@@ -168,8 +173,11 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
+            for (int i = 0; i < router.bucketCount(); i++) {
+                int bucketNo = i;
+                List<RecordBuffer> parts = readerBuckets.stream().map(localBuckets -> localBuckets[bucketNo]).collect(Collectors.toList());
+                byte[] bucket = RecordBuffer.toByteArray(parts);
+                parts.forEach(RecordBuffer::close);
 
 //                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
 //                        PCJ.myId(), i, bucket.length);
@@ -192,12 +200,16 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = Arrays.stream(buckets).flatMap(Arrays::stream).toArray(Element[]::new);
-        Arrays.sort(sortedBuckets);
+        RecordBuffer records = new RecordBuffer();
+        for (int i = 0; i < buckets.length; ++i) {
+            records.addAll(buckets[i]);
+            buckets[i] = null;
+        }
+        int[] sortedOrder = records.sort();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                records.size(),
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -208,17 +220,18 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         while (true) {
             try (TeraFileOutput output = new TeraFileOutput(hdfsFileSystem, outputFile)) {
-                output.writeElements(sortedBuckets);
+                output.writeRecords(records, sortedOrder);
                 break;
             } catch (Exception e) {
                 System.err.println("Exception " + e.toString() + " on Thread " + PCJ.myId() + ". Retrying after 5s.");
                 Thread.sleep(5000);
             }
         }
+        records.close();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedOrder.length,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -242,52 +255,29 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         private static final int keyLength = 10;
         private static final int valueLength = recordLength - keyLength;
         private final FileSystem hdfsFileSystem;
-        private final Path[] inputPaths;
-        private final long[] inputFileSizes;
-        private final long length;
+        private final HdfsInputFiles files;
         private final byte[] tempKeyBytes;
         private final byte[] tempValueBytes;
-        private FSDataInputStream input;
+        private final HdfsBlockReader input;
         private int inputIndex;
         private long currentElementPos;
         private long minElementPos;
         private long maxElementPos;
+        private long endElementPos;
 
         public TeraFileInput(FileSystem hdfsFileSystem, String inputFile) throws IOException {
             this.hdfsFileSystem = hdfsFileSystem;
-            Path inputPath = new Path(inputFile);
-            if (hdfsFileSystem.getFileStatus(inputPath).isDirectory()) {
-                inputPaths = Arrays.stream(hdfsFileSystem.listStatus(inputPath))
-                        .filter(FileStatus::isFile)
-                        .filter(fs -> fs.getPath().getName().startsWith("part"))
-                        .map(FileStatus::getPath)
-                        .toArray(Path[]::new);
-
-                inputFileSizes = Arrays.stream(inputPaths)
-                        .map(f -> {
-                            try {
-                                return hdfsFileSystem.getContentSummary(f);
-                            } catch (IOException e) {
-                                throw new UncheckedIOException(e);
-                            }
-                        })
-                        .mapToLong(ContentSummary::getLength).toArray();
-
-                length = Arrays.stream(inputFileSizes).sum() / recordLength;
-            } else {
-                inputPaths = new Path[]{inputPath};
-                inputFileSizes = new long[]{hdfsFileSystem.getContentSummary(inputPath).getLength()};
-                length = inputFileSizes[0];
-            }
+            this.files = HdfsInputFiles.list(hdfsFileSystem, inputFile);
 
             tempKeyBytes = new byte[keyLength];
             tempValueBytes = new byte[valueLength];
 
-            input = null;
+            input = new HdfsBlockReader();
             inputIndex = -1;
             currentElementPos = 0;
             minElementPos = 0;
             maxElementPos = 0;
+            endElementPos = Long.MAX_VALUE;
         }
 
         @Override
@@ -296,48 +286,55 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
         }
 
         public long length() {
-            return length;
+            return files.length();
+        }
+
+        public HdfsInputFiles files() {
+            return files;
         }
 
         public void seek(long pos) throws IOException {
+            seek(pos, Long.MAX_VALUE);
+        }
+
+        /**
+         * Moves to element {@code pos}; elements from {@code endPos} on are not read from HDFS.
+         */
+        public void seek(long pos, long endPos) throws IOException {
+            endElementPos = endPos;
             if (pos < minElementPos || pos >= maxElementPos) {
-                long cur = 0L;
-                long p = pos * recordLength;
-                for (int i = 0; i < inputFileSizes.length; ++i) {
-                    cur += inputFileSizes[i];
-                    if (p < cur) {
-                        inputIndex = i;
-                        minElementPos = (cur - inputFileSizes[i]) / recordLength;
-                        maxElementPos = cur / recordLength;
-                        break;
-                    }
-                }
-                if (input != null) {
-                    input.close();
-                }
-                input = hdfsFileSystem.open(inputPaths[inputIndex]);
+                inputIndex = files.fileOf(pos);
+                minElementPos = files.fileStart(inputIndex);
+                maxElementPos = files.fileStart(inputIndex + 1);
+                input.open(hdfsFileSystem.open(files.path(inputIndex)), files.size(inputIndex));
             }
-            input.seek((pos - minElementPos) * recordLength);
+            input.seek((pos - minElementPos) * recordLength, readLimit());
             currentElementPos = pos;
         }
 
         public Element readElement() throws IOException {
-            if (currentElementPos >= maxElementPos) {
-                inputIndex++;
-                minElementPos = maxElementPos;
-                maxElementPos += inputFileSizes[inputIndex] / recordLength;
-                if (input != null) {
-                    input.close();
-                }
-                input = hdfsFileSystem.open(inputPaths[inputIndex]);
-            }
+            openNextIfNeeded();
 
-            input.readFully(tempKeyBytes);
-            input.readFully(tempValueBytes);
+            input.readFully(tempKeyBytes, 0, keyLength);
+            input.readFully(tempValueBytes, 0, valueLength);
             currentElementPos++;
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void openNextIfNeeded() throws IOException {
+            if (currentElementPos >= maxElementPos) {
+                inputIndex = files.fileOf(currentElementPos);
+                minElementPos = files.fileStart(inputIndex);
+                maxElementPos = files.fileStart(inputIndex + 1);
+                input.open(hdfsFileSystem.open(files.path(inputIndex)), files.size(inputIndex));
+                input.seek(0, readLimit());
+            }
+        }
+
+        private long readLimit() {
+            return (Math.min(endElementPos, maxElementPos) - minElementPos) * recordLength;
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
@@ -345,21 +342,15 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
 
         public TeraFileOutput(FileSystem hdfsFileSystem, String outputFile) throws IOException {
             Path outputPath = new Path(outputFile);
-            output = hdfsFileSystem.create(outputPath, true);
+            output = PipelinedOutputStream.wrap(HdfsOutputFiles.create(hdfsFileSystem, outputPath));
         }
 
-        public void writeElement(Element element) throws IOException {
-            byte[] key = element.getKey().value;
-            output.write(key, 0, key.length);
-
-            byte[] value = element.getValue().value;
-            output.write(value, 0, value.length);
-        }
-
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record, 0, record.length);
                 }
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
@@ -382,20 +373,10 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -441,6 +422,12 @@ public class PcjTeraSortHdfsOnePivotMultipleFiles implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
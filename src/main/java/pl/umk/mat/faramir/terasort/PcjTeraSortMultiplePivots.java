@@ -10,12 +10,11 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * First version of PcjTeraSort benchmark.
@@ -37,7 +36,7 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
     private boolean sequencer;
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    private Element[][][] buckets;
+    private byte[][][] buckets;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
@@ -67,6 +66,8 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output file: %s%n", outputFile);
             System.out.printf(Locale.ENGLISH, "Number of pivots by thread: %d%n", numberOfPivotsByThread);
+            System.out.printf(Locale.ENGLISH, "Reader threads: %d (%s input engine)%n",
+                    ParallelRecordReader.threads(), ParallelRecordReader.engine());
 
             new File(outputFile).delete();
             File parentFile = new File(outputFile).getParentFile();
@@ -122,34 +123,25 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
             readingStart = System.nanoTime();
 
             int pivotsCount = ((pivots.size() + 1) + PCJ.threadCount() - (PCJ.myId() + 1)) / PCJ.threadCount();
-            buckets = new Element[pivotsCount][PCJ.threadCount()][];
+            buckets = new byte[pivotsCount][PCJ.threadCount()][];
             PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                localBuckets[bucketNo].add(e);
-            }
+            // for each element in own data: put element in proper bucket (every reader thread has own buckets)
+            List<RecordBuffer[]> readerBuckets = ParallelRecordReader.read(inputFile, startElement, endElement,
+                    MEMORY_MAP_ELEMENT_COUNT,
+                    () -> Stream.generate(RecordBuffer::new).limit(router.bucketCount()).toArray(RecordBuffer[]::new),
+                    (localBuckets, records, offset) -> localBuckets[router.bucketOf(records, offset)].add(records, offset));
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
 
             // exchange buckets
-            int smallPackSize = localBuckets.length / PCJ.threadCount();
-            int bigPacks = (localBuckets.length % PCJ.threadCount());
-            int bigPackSize = (localBuckets.length + PCJ.threadCount() - 1) / PCJ.threadCount();
+            int smallPackSize = router.bucketCount() / PCJ.threadCount();
+            int bigPacks = (router.bucketCount() % PCJ.threadCount());
+            int bigPackSize = (router.bucketCount() + PCJ.threadCount() - 1) / PCJ.threadCount();
             int bigPackLimit = bigPackSize * bigPacks;
 
             System.out.println("TL:" + PCJ.myId() + "\tread_data\t" + (System.nanoTime() - startTime) / 1e9);
@@ -157,7 +149,7 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
+            for (int i = 0; i < router.bucketCount(); i++) {
                 int threadId;
                 int packNo;
                 if (i < bigPackLimit) {
@@ -168,7 +160,10 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
                     packNo = (i - bigPackLimit) % smallPackSize;
                 }
 
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
+                int bucketNo = i;
+                List<RecordBuffer> parts = readerBuckets.stream().map(localBuckets -> localBuckets[bucketNo]).collect(Collectors.toList());
+                byte[] bucket = RecordBuffer.toByteArray(parts);
+                parts.forEach(RecordBuffer::close);
 
 //                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d packNo %d - %5d elements (localBucket=%5d)%n",
 //                        PCJ.myId(), threadId, packNo, bucket.length, i);
@@ -191,14 +186,19 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting buckets%n", PCJ.myId());
-        Element[][] sortedBuckets = new Element[buckets.length][];
+        RecordBuffer[] records = new RecordBuffer[buckets.length];
+        int[][] sortedOrders = new int[buckets.length][];
         for (int i = 0; i < buckets.length; i++) {
-            sortedBuckets[i] = Arrays.stream(buckets[i]).flatMap(Arrays::stream).toArray(Element[]::new);
-            Arrays.sort(sortedBuckets[i]);
+            records[i] = new RecordBuffer();
+            for (int j = 0; j < buckets[i].length; ++j) {
+                records[i].addAll(buckets[i][j]);
+                buckets[i][j] = null;
+            }
+            sortedOrders[i] = records[i].sort();
         }
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                Arrays.stream(sortedBuckets).mapToLong(a -> a.length).sum(),
+                Arrays.stream(sortedOrders).mapToLong(a -> a.length).sum(),
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorting_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -209,12 +209,15 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
 
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         try (TeraFileOutput output = new TeraFileOutput(outputFile)) {
-            Arrays.stream(sortedBuckets).forEach(output::writeElements);
+            for (int i = 0; i < records.length; i++) {
+                output.writeRecords(records[i], sortedOrders[i]);
+                records[i].close();
+            }
         }
         PCJ.put(true, (PCJ.myId() + 1) % PCJ.threadCount(), Vars.sequencer);
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                Arrays.stream(sortedBuckets).mapToInt(a -> a.length).sum(),
+                Arrays.stream(sortedOrders).mapToInt(a -> a.length).sum(),
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaving_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -266,11 +269,7 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
         }
 
         public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY,
-                        input.position(),
-                        Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength));
-            }
+            mapIfNeeded();
             mappedByteBuffer.get(tempKeyBytes);
             mappedByteBuffer.get(tempValueBytes);
 
@@ -278,24 +277,29 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void mapIfNeeded() throws IOException {
+            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
+                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY,
+                        input.position(),
+                        Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength));
+            }
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
-        private final BufferedOutputStream output;
+        private final OutputStream output;
 
         public TeraFileOutput(String outputFile) throws FileNotFoundException {
-            output = new BufferedOutputStream(new FileOutputStream(outputFile, true));
-        }
-
-        public void writeElement(Element element) throws IOException {
-            output.write(element.getKey().value);
-            output.write(element.getValue().value);
+            output = PipelinedOutputStream.wrap(new BufferedOutputStream(new FileOutputStream(outputFile, true)));
         }
 
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record);
                 }
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
@@ -318,20 +322,10 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -377,6 +371,12 @@ public class PcjTeraSortMultiplePivots implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
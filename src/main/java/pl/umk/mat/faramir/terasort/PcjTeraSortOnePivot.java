@@ -10,13 +10,13 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Second version of PcjTeraSort benchmark based on {@link PcjTeraSortMultiplePivots}.
@@ -25,21 +25,31 @@ import java.util.stream.IntStream;
  * with exception when number of threads is greater than number of elements in input.
  * <p>
  * Writing sequentially to one file.
+ * <p>
+ * With {@code exchange.streaming=true} records are not kept in local buckets until reading
+ * finishes; they are streamed to their destination threads in chunks of
+ * {@code exchange.chunkRecords} records, with at most {@code exchange.maxInFlightChunks}
+ * undelivered chunks per destination, so memory is not tripled during the exchange.
  */
 @RegisterStorage(PcjTeraSortOnePivot.Vars.class)
 public class PcjTeraSortOnePivot implements StartPoint {
 
     private static final long MEMORY_MAP_ELEMENT_COUNT = Long.parseLong(System.getProperty("memoryMap.elementCount", "1000000"));
+    private static final boolean EXCHANGE_STREAMING = Boolean.parseBoolean(System.getProperty("exchange.streaming", "false"));
+    private static final int EXCHANGE_CHUNK_RECORDS = Integer.parseInt(System.getProperty("exchange.chunkRecords", "10000"));
+    private static final int EXCHANGE_MAX_IN_FLIGHT_CHUNKS = Integer.parseInt(System.getProperty("exchange.maxInFlightChunks", "4"));
 
     @Storage(PcjTeraSortOnePivot.class)
     enum Vars {
-        sequencer, pivots, buckets
+        sequencer, pivots, buckets, received, finishedSending
     }
 
     private boolean sequencer;
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    private Element[][] buckets;
+    private byte[][] buckets;
+    private ReceiveQueues received = new ReceiveQueues(PCJ.threadCount());
+    private boolean finishedSending;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
@@ -68,6 +78,12 @@ public class PcjTeraSortOnePivot implements StartPoint {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output file: %s%n", outputFile);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Reader threads: %d (%s input engine)%n",
+                    ParallelRecordReader.threads(), ParallelRecordReader.engine());
+            if (EXCHANGE_STREAMING) {
+                System.out.printf(Locale.ENGLISH, "Streaming exchange chunk size: %d, max in-flight chunks: %d%n",
+                        EXCHANGE_CHUNK_RECORDS, EXCHANGE_MAX_IN_FLIGHT_CHUNKS);
+            }
 
             new File(outputFile).delete();
             File parentFile = new File(outputFile).getParentFile();
@@ -131,26 +147,40 @@ public class PcjTeraSortOnePivot implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            buckets = new Element[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
+            buckets = new byte[!EXCHANGE_STREAMING && PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
             PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
+            int myId = PCJ.myId();
+            BiFunction<Integer, byte[], PcjFuture<Void>> transport = (threadId, chunk) -> {
+                if (threadId != myId) {
+                    return PCJ.asyncAt(threadId, () -> {
+                        ReceiveQueues local = PCJ.getLocal(Vars.received);
+                        local.add(myId, chunk);
+                    });
+                }
+                received.add(myId, chunk);
+                return null;
+            };
+            // every reader thread streams through own sender, so they share the in-flight credit
+            long maxInFlightBytes = (long) EXCHANGE_MAX_IN_FLIGHT_CHUNKS * EXCHANGE_CHUNK_RECORDS * RecordBuffer.RECORD_LENGTH
+                    / ParallelRecordReader.threads();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                localBuckets[bucketNo].add(e);
+            // for each element in own data: put element in proper bucket (every reader thread has own buckets)
+            List<RecordBuffer[]> readerBuckets = List.of();
+            List<ChunkSender> senders = List.of();
+            if (EXCHANGE_STREAMING) {
+                senders = ParallelRecordReader.read(inputFile, startElement, endElement,
+                        MEMORY_MAP_ELEMENT_COUNT,
+                        () -> new ChunkSender(router.bucketCount(), EXCHANGE_CHUNK_RECORDS, maxInFlightBytes, transport),
+                        (sender, records, offset) -> sender.add(router.bucketOf(records, offset), records, offset));
+            } else {
+                readerBuckets = ParallelRecordReader.read(inputFile, startElement, endElement,
+                        MEMORY_MAP_ELEMENT_COUNT,
+                        () -> Stream.generate(RecordBuffer::new).limit(router.bucketCount()).toArray(RecordBuffer[]::new),
+                        (localBuckets, records, offset) -> localBuckets[router.bucketOf(records, offset)].add(records, offset));
             }
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
@@ -160,8 +190,11 @@ public class PcjTeraSortOnePivot implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
+            for (int i = 0; i < (EXCHANGE_STREAMING ? 0 : router.bucketCount()); i++) {
+                int bucketNo = i;
+                List<RecordBuffer> parts = readerBuckets.stream().map(localBuckets -> localBuckets[bucketNo]).collect(Collectors.toList());
+                byte[] bucket = RecordBuffer.toByteArray(parts);
+                parts.forEach(RecordBuffer::close);
 
 //                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
 //                        PCJ.myId(), i, bucket.length);
@@ -172,6 +205,14 @@ public class PcjTeraSortOnePivot implements StartPoint {
                     PCJ.putLocal(bucket, Vars.buckets, PCJ.myId());
                 }
             }
+            if (EXCHANGE_STREAMING) {
+                senders.forEach(ChunkSender::finish);
+                PCJ.asyncBroadcast(true, Vars.finishedSending);
+                System.out.printf(Locale.ENGLISH, "Thread %d was blocked on send credits %d times for %.7f seconds%n",
+                        PCJ.myId(),
+                        senders.stream().mapToLong(sender -> sender.credits().blockedCount()).sum(),
+                        senders.stream().mapToLong(sender -> sender.credits().blockedNanos()).sum() / 1e9);
+            }
             System.out.printf(Locale.ENGLISH, "Thread %d finished sending data in %.7f seconds%n",
                     PCJ.myId(),
                     (System.nanoTime() - sendingStart) / 1e9);
@@ -179,17 +220,25 @@ public class PcjTeraSortOnePivot implements StartPoint {
         }
 
         // sort buckets
-        PCJ.waitFor(Vars.buckets, buckets.length);
+        if (EXCHANGE_STREAMING) {
+            PCJ.waitFor(Vars.finishedSending, PCJ.threadCount());
+        } else {
+            PCJ.waitFor(Vars.buckets, buckets.length);
+        }
         System.out.println("TL:" + PCJ.myId() + "\twaitfor_data\t" + (System.nanoTime() - startTime) / 1e9);
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = Arrays.stream(buckets).flatMap(Arrays::stream).toArray(Element[]::new);
-        Arrays.sort(sortedBuckets);
+        RecordBuffer records = received.drainTo(new RecordBuffer());
+        for (int i = 0; i < buckets.length; ++i) {
+            records.addAll(buckets[i]);
+            buckets[i] = null;
+        }
+        int[] sortedOrder = records.sort();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                records.size(),
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -200,12 +249,13 @@ public class PcjTeraSortOnePivot implements StartPoint {
 
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         try (TeraFileOutput output = new TeraFileOutput(outputFile)) {
-            output.writeElements(sortedBuckets);
+            output.writeRecords(records, sortedOrder);
         }
         PCJ.put(true, (PCJ.myId() + 1) % PCJ.threadCount(), Vars.sequencer);
+        records.close();
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedOrder.length,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -265,12 +315,7 @@ public class PcjTeraSortOnePivot implements StartPoint {
         }
 
         public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
-                minElementPos = input.position() / recordLength;
-                maxElementPos = minElementPos + size / recordLength;
-            }
+            mapIfNeeded();
             mappedByteBuffer.get(tempKeyBytes);
             mappedByteBuffer.get(tempValueBytes);
 
@@ -278,24 +323,30 @@ public class PcjTeraSortOnePivot implements StartPoint {
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void mapIfNeeded() throws IOException {
+            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
+                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
+                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
+                minElementPos = input.position() / recordLength;
+                maxElementPos = minElementPos + size / recordLength;
+            }
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
-        private final BufferedOutputStream output;
+        private final OutputStream output;
 
         public TeraFileOutput(String outputFile) throws FileNotFoundException {
-            output = new BufferedOutputStream(new FileOutputStream(outputFile, true));
+            output = PipelinedOutputStream.wrap(new BufferedOutputStream(new FileOutputStream(outputFile, true)));
         }
 
-        public void writeElement(Element element) throws IOException {
-            output.write(element.getKey().value);
-            output.write(element.getValue().value);
-        }
-
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record);
                 }
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
@@ -318,20 +369,10 @@ public class PcjTeraSortOnePivot implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -377,6 +418,12 @@ public class PcjTeraSortOnePivot implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
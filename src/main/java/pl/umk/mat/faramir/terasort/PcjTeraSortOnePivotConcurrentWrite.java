@@ -17,13 +17,12 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Fourth version of PcjTeraSort benchmark based on {@link PcjTeraSortOnePivotMultipleFiles}.
@@ -37,6 +36,12 @@ import java.util.stream.IntStream;
 public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
     private static final long MEMORY_MAP_ELEMENT_COUNT = Long.parseLong(System.getProperty("memoryMap.elementCount", "1000000"));
+    private static final OutputEngine OUTPUT_ENGINE = OutputEngine.valueOf(
+            System.getProperty("output.engine", "mmap").toUpperCase(Locale.ENGLISH));
+
+    enum OutputEngine {
+        MMAP, PWRITE
+    }
 
     @Storage(PcjTeraSortOnePivotConcurrentWrite.class)
     enum Vars {
@@ -45,7 +50,7 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    private Element[][] buckets;
+    private byte[][] buckets;
     private long[] elements = new long[PCJ.threadCount()];
 
     public static void main(String[] args) throws IOException {
@@ -71,6 +76,11 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output file: %s%n", outputFile);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Reader threads: %d (%s input engine)%n",
+                    ParallelRecordReader.threads(), ParallelRecordReader.engine());
+            System.out.printf(Locale.ENGLISH, "Output engine: %s%n", OUTPUT_ENGINE == OutputEngine.PWRITE
+                    ? "pwrite"
+                    : "mmap (" + MappedRecordWriter.configuration() + ")");
 
             new File(outputFile).delete();
             File parentFile = new File(outputFile).getParentFile();
@@ -141,27 +151,18 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            buckets = new Element[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
+            buckets = new byte[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
             PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                localBuckets[bucketNo].add(e);
-            }
+            // for each element in own data: put element in proper bucket (every reader thread has own buckets)
+            List<RecordBuffer[]> readerBuckets = ParallelRecordReader.read(inputFile, startElement, endElement,
+                    MEMORY_MAP_ELEMENT_COUNT,
+                    () -> Stream.generate(RecordBuffer::new).limit(router.bucketCount()).toArray(RecordBuffer[]::new),
+                    (localBuckets, records, offset) -> localBuckets[router.bucketOf(records, offset)].add(records, offset));
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
 
@@ -170,8 +171,11 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
+            for (int i = 0; i < router.bucketCount(); i++) {
+                int bucketNo = i;
+                List<RecordBuffer> parts = readerBuckets.stream().map(localBuckets -> localBuckets[bucketNo]).collect(Collectors.toList());
+                byte[] bucket = RecordBuffer.toByteArray(parts);
+                parts.forEach(RecordBuffer::close);
 
 //                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
 //                        PCJ.myId(), i, bucket.length);
@@ -193,17 +197,21 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
         System.out.println("TL:" + PCJ.myId() + "\twaitfor_data\t" + (System.nanoTime() - startTime) / 1e9);
         long sortingStart = System.nanoTime();
 
-        long localElements = Arrays.stream(buckets).mapToLong(bucket -> bucket.length).sum();
+        long localElements = Arrays.stream(buckets).mapToLong(bucket -> bucket.length).sum() / RecordBuffer.RECORD_LENGTH;
         System.out.printf(Locale.ENGLISH, "Thread %d have %d elements%n", PCJ.myId(), localElements);
         PCJ.asyncBroadcast(localElements, Vars.elements, PCJ.myId());
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = Arrays.stream(buckets).flatMap(Arrays::stream).toArray(Element[]::new);
-        Arrays.sort(sortedBuckets);
+        RecordBuffer records = new RecordBuffer();
+        for (int i = 0; i < buckets.length; ++i) {
+            records.addAll(buckets[i]);
+            buckets[i] = null;
+        }
+        int[] sortedOrder = records.sort();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                records.size(),
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -214,13 +222,17 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         long position = Arrays.stream(elements).limit(PCJ.myId()).sum();
-        try (TeraFileOutput output = new TeraFileOutput(outputFile, position, elements[PCJ.myId()])) {
-            output.writeElements(sortedBuckets);
+        TeraFileOutput output = new TeraFileOutput(outputFile, position, elements[PCJ.myId()]);
+        try (output) {
+            output.writeRecords(records, sortedOrder);
         }
+        // closing writes the last block, so statistics are complete only now
+        System.out.printf(Locale.ENGLISH, "Thread %d output: %s%n", PCJ.myId(), output.writer().statistics());
+        records.close();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedOrder.length,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -284,12 +296,7 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
         }
 
         public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
-                minElementPos = input.position() / recordLength;
-                maxElementPos = minElementPos + size / recordLength;
-            }
+            mapIfNeeded();
             mappedByteBuffer.get(tempKeyBytes);
             mappedByteBuffer.get(tempValueBytes);
 
@@ -297,45 +304,43 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void mapIfNeeded() throws IOException {
+            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
+                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
+                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
+                minElementPos = input.position() / recordLength;
+                maxElementPos = minElementPos + size / recordLength;
+            }
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
-        private static final int recordLength = 100;
-
-        private static final int keyLength = 10;
-        private static final int valueLength = recordLength - keyLength;
         private final FileChannel output;
-        private final long startPosition;
-        private final long elementCount;
-        private MappedByteBuffer mappedByteBuffer;
-        private long writtenElements;
+        private final RecordWriter writer;
 
         public TeraFileOutput(String outputFile, long startPosition, long elementCount) throws IOException {
             output = FileChannel.open(Paths.get(outputFile),
                     StandardOpenOption.READ,
                     StandardOpenOption.WRITE,
                     StandardOpenOption.SPARSE);
-            this.startPosition = startPosition;
-            this.elementCount = elementCount;
-            this.writtenElements = 0;
+            writer = OUTPUT_ENGINE == OutputEngine.PWRITE
+                    ? new PositionalRecordWriter(output, startPosition)
+                    : new MappedRecordWriter(output, startPosition, elementCount, MEMORY_MAP_ELEMENT_COUNT);
         }
 
-        public void writeElement(Element element) throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                long size = Math.min((elementCount - writtenElements) * recordLength, MEMORY_MAP_ELEMENT_COUNT * recordLength);
-                mappedByteBuffer = output.map(FileChannel.MapMode.READ_WRITE,
-                        (startPosition + writtenElements) * recordLength,
-                        size);
-            }
-            mappedByteBuffer.put(element.getKey().value);
-            mappedByteBuffer.put(element.getValue().value);
-            ++writtenElements;
+        public void writeRecord(RecordBuffer records, int index) throws IOException {
+            writer.write(records, index);
+        }
+
+        public RecordWriter writer() {
+            return writer;
         }
 
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                for (int index : order) {
+                    writeRecord(records, index);
                 }
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
@@ -344,6 +349,7 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
         @Override
         public void close() throws Exception {
+            writer.close();
             output.close();
         }
     }
@@ -358,20 +364,10 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -417,6 +413,12 @@ public class PcjTeraSortOnePivotConcurrentWrite implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
@@ -11,13 +11,12 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Third version of PcjTeraSort benchmark based on {@link PcjTeraSortOnePivot}.
@@ -39,7 +38,7 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
 
     @SuppressWarnings("serializable")
     private List<Element> pivots = new ArrayList<>();
-    private Element[][] buckets;
+    private byte[][] buckets;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
@@ -66,6 +65,8 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
             System.out.printf(Locale.ENGLISH, "Input file: %s%n", inputFile);
             System.out.printf(Locale.ENGLISH, "Output file prefix: %s%n", outputFilePrefix);
             System.out.printf(Locale.ENGLISH, "Sample size is: %d%n", sampleSize);
+            System.out.printf(Locale.ENGLISH, "Reader threads: %d (%s input engine)%n",
+                    ParallelRecordReader.threads(), ParallelRecordReader.engine());
 
             String namePrefix = new File(outputFilePrefix).getName() + outputFileSuffix;
 
@@ -137,27 +138,18 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
             System.out.println("TL:" + PCJ.myId() + "\tget_pivots\t" + (System.nanoTime() - startTime) / 1e9);
             readingStart = System.nanoTime();
 
-            buckets = new Element[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
+            buckets = new byte[PCJ.myId() < pivots.size() + 1 ? PCJ.threadCount() : 0][];
             PcjFuture<Void> bucketsBarrier = PCJ.asyncBarrier();
 
-            @SuppressWarnings("unchecked")
-            List<Element>[] localBuckets = (List<Element>[]) new List[pivots.size() + 1];
-            for (int i = 0; i < localBuckets.length; ++i) {
-                localBuckets[i] = new LinkedList<>();
-            }
+            PivotRouter router = new PivotRouter(pivots.stream().map(Element::toRecord).toArray(byte[][]::new));
 
             System.out.printf(Locale.ENGLISH, "Thread %d started reading data%n", PCJ.myId());
 
-            // for each element in own data: put element in proper bucket
-            input.seek(startElement);
-            for (long i = startElement; i < endElement; ++i) {
-                Element e = input.readElement();
-                int bucketNo = Collections.binarySearch(pivots, e);
-                if (bucketNo < 0) {
-                    bucketNo = -(bucketNo + 1);
-                }
-                localBuckets[bucketNo].add(e);
-            }
+            // for each element in own data: put element in proper bucket (every reader thread has own buckets)
+            List<RecordBuffer[]> readerBuckets = ParallelRecordReader.read(inputFile, startElement, endElement,
+                    MEMORY_MAP_ELEMENT_COUNT,
+                    () -> Stream.generate(RecordBuffer::new).limit(router.bucketCount()).toArray(RecordBuffer[]::new),
+                    (localBuckets, records, offset) -> localBuckets[router.bucketOf(records, offset)].add(records, offset));
             System.out.printf(Locale.ENGLISH, "Thread %d finished reading data in %.7f seconds%n",
                     PCJ.myId(), (System.nanoTime() - readingStart) / 1e9);
 
@@ -166,8 +158,11 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
             sendingStart = System.nanoTime();
 
             System.out.printf(Locale.ENGLISH, "Thread %d started sending buckets data%n", PCJ.myId());
-            for (int i = 0; i < localBuckets.length; i++) {
-                Element[] bucket = localBuckets[i].toArray(new Element[0]);
+            for (int i = 0; i < router.bucketCount(); i++) {
+                int bucketNo = i;
+                List<RecordBuffer> parts = readerBuckets.stream().map(localBuckets -> localBuckets[bucketNo]).collect(Collectors.toList());
+                byte[] bucket = RecordBuffer.toByteArray(parts);
+                parts.forEach(RecordBuffer::close);
 
 //                System.err.printf(Locale.ENGLISH, "Thread %3d will be sending to %3d - %5d elements%n",
 //                        PCJ.myId(), i, bucket.length);
@@ -190,12 +185,16 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
         long sortingStart = System.nanoTime();
 
         System.out.printf(Locale.ENGLISH, "Thread %d started sorting bucket%n", PCJ.myId());
-        Element[] sortedBuckets = Arrays.stream(buckets).flatMap(Arrays::stream).toArray(Element[]::new);
-        Arrays.sort(sortedBuckets);
+        RecordBuffer records = new RecordBuffer();
+        for (int i = 0; i < buckets.length; ++i) {
+            records.addAll(buckets[i]);
+            buckets[i] = null;
+        }
+        int[] sortedOrder = records.sort();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished sorting %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                records.size(),
                 (System.nanoTime() - sortingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsorted_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -205,12 +204,13 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
 
         System.out.printf(Locale.ENGLISH, "Thread %d started saving buckets to file%n", PCJ.myId());
         try (TeraFileOutput output = new TeraFileOutput(outputFileName)) {
-            output.writeElements(sortedBuckets);
+            output.writeRecords(records, sortedOrder);
         }
+        records.close();
 
         System.out.printf(Locale.ENGLISH, "Thread %d finished saving %d elements in %.7f seconds%n",
                 PCJ.myId(),
-                sortedBuckets.length,
+                sortedOrder.length,
                 (System.nanoTime() - savingStart) / 1e9);
         System.out.println("TL:" + PCJ.myId() + "\tsaved_data\t" + (System.nanoTime() - startTime) / 1e9);
 
@@ -270,12 +270,7 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
         }
 
         public Element readElement() throws IOException {
-            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
-                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
-                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
-                minElementPos = input.position() / recordLength;
-                maxElementPos = minElementPos + size / recordLength;
-            }
+            mapIfNeeded();
             mappedByteBuffer.get(tempKeyBytes);
             mappedByteBuffer.get(tempValueBytes);
 
@@ -283,24 +278,30 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
 
             return new Element(new Text(tempKeyBytes), new Text(tempValueBytes));
         }
+
+        private void mapIfNeeded() throws IOException {
+            if (mappedByteBuffer == null || !mappedByteBuffer.hasRemaining()) {
+                long size = Math.min(input.size() - input.position(), MEMORY_MAP_ELEMENT_COUNT * recordLength);
+                mappedByteBuffer = input.map(FileChannel.MapMode.READ_ONLY, input.position(), size);
+                minElementPos = input.position() / recordLength;
+                maxElementPos = minElementPos + size / recordLength;
+            }
+        }
     }
 
     public static class TeraFileOutput implements AutoCloseable {
-        private final BufferedOutputStream output;
+        private final OutputStream output;
 
         public TeraFileOutput(String outputFile) throws FileNotFoundException {
-            output = new BufferedOutputStream(new FileOutputStream(outputFile, false));
+            output = PipelinedOutputStream.wrap(new BufferedOutputStream(new FileOutputStream(outputFile, false)));
         }
 
-        public void writeElement(Element element) throws IOException {
-            output.write(element.getKey().value);
-            output.write(element.getValue().value);
-        }
-
-        public void writeElements(Element[] elements) throws UncheckedIOException {
+        public void writeRecords(RecordBuffer records, int[] order) throws UncheckedIOException {
+            byte[] record = new byte[RecordBuffer.RECORD_LENGTH];
             try {
-                for (Element element : elements) {
-                    writeElement(element);
+                for (int index : order) {
+                    records.get(index, record, 0);
+                    output.write(record);
                 }
             } catch (IOException ex) {
                 throw new UncheckedIOException(ex);
@@ -323,20 +324,10 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
 
         @Override
         public int compareTo(Text other) {
-            byte[] buffer1 = this.value;
-            byte[] buffer2 = other.value;
-            if (buffer1 == buffer2) {
+            if (this.value == other.value) {
                 return 0;
             }
-
-            for (int i = 0, j = 0; i < buffer1.length && j < buffer2.length; ++i, ++j) {
-                int a = (buffer1[i] & 0xFF);
-                int b = (buffer2[i] & 0xFF);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return buffer1.length - buffer2.length;
+            return RecordComparator.INSTANCE.compare(this.value, other.value);
         }
 
         @Override
@@ -382,6 +373,12 @@ public class PcjTeraSortOnePivotMultipleFiles implements StartPoint {
             return value;
         }
 
+        public byte[] toRecord() {
+            byte[] record = Arrays.copyOf(key.value, key.value.length + value.value.length);
+            System.arraycopy(value.value, 0, record, key.value.length, value.value.length);
+            return record;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Element)) {
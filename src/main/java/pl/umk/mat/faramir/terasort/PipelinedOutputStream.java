@@ -0,0 +1,140 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream writing large blocks to the underlying stream in a background thread.
+ * <p>
+ * Records are copied into a block of {@code output.pipelineBlockSize} bytes; a full block is
+ * handed over to the writer thread and the producer continues with the next free block, so
+ * gathering or merging sorted records overlaps with output I/O. At most
+ * {@code output.pipelineBlocks} blocks exist, which bounds memory and makes the producer wait
+ * when the storage is slower. An I/O error of the writer thread is thrown by the next call.
+ * <p>
+ * Pipelining is enabled with {@code output.pipelined=true}; otherwise {@link #wrap(OutputStream)}
+ * returns the given stream.
+ */
+public class PipelinedOutputStream extends OutputStream {
+    private static final boolean PIPELINED = Boolean.parseBoolean(System.getProperty("output.pipelined", "false"));
+    private static final int BLOCK_SIZE = Integer.parseInt(System.getProperty("output.pipelineBlockSize", "4194304"));
+    private static final int BLOCKS = Integer.parseInt(System.getProperty("output.pipelineBlocks", "4"));
+    private static final Block END = new Block(0);
+
+    private final OutputStream output;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> full;
+    private final Thread writer;
+    private volatile IOException failure;
+    private Block current;
+    private boolean closed;
+
+    private PipelinedOutputStream(OutputStream output) {
+        this.output = output;
+        this.free = new ArrayBlockingQueue<>(BLOCKS);
+        this.full = new ArrayBlockingQueue<>(BLOCKS + 1);
+        for (int i = 1; i < BLOCKS; ++i) {
+            free.add(new Block(BLOCK_SIZE));
+        }
+        this.current = new Block(BLOCK_SIZE);
+        this.writer = new Thread(this::writeBlocks, "output-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static OutputStream wrap(OutputStream output) {
+        return PIPELINED ? new PipelinedOutputStream(output) : output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current.length == current.data.length) {
+            handOver();
+        }
+        current.data[current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current.length == current.data.length) {
+                handOver();
+            }
+            int length = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, length);
+            current.length += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current.length > 0) {
+                full.put(current);
+            }
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing output");
+        } finally {
+            output.close();
+        }
+        checkFailure();
+    }
+
+    private void handOver() throws IOException {
+        checkFailure();
+        try {
+            full.put(current);
+            current = free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing output");
+        }
+        current.length = 0;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing output failed", failure);
+        }
+    }
+
+    private void writeBlocks() {
+        try {
+            Block block;
+            while ((block = full.take()) != END) {
+                if (failure == null) {
+                    try {
+                        output.write(block.data, 0, block.length);
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+                // blocks are given back after a failure too, so the producer never hangs
+                free.put(block);
+            }
+        } catch (InterruptedException ex) {
+            failure = new InterruptedIOException("Output writer interrupted");
+        }
+    }
+
+    private static class Block {
+        private final byte[] data;
+        private int length;
+
+        private Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
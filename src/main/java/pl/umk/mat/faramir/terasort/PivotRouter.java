@@ -0,0 +1,76 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Assigns raw records to buckets delimited by sorted pivot records.
+ * <p>
+ * Bucket number is the number of pivots smaller than the record, the same value
+ * {@code Collections.binarySearch(pivots, element)} gives after normalizing the insertion point.
+ * <p>
+ * A table indexed by the first two key bytes narrows the search to pivots sharing that
+ * prefix, which for thousands of uniformly spread pivots is zero or one pivot. The remaining
+ * range is searched on primitive 8-byte key prefixes; whole records are compared only when
+ * prefixes are equal.
+ */
+public class PivotRouter {
+    private static final int TABLE_BITS = 16;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[][] pivots;
+    private final long[] pivotPrefixes;
+    private final int[] firstPivot;
+
+    public PivotRouter(byte[][] pivots) {
+        this.pivots = pivots;
+        pivotPrefixes = new long[pivots.length];
+        for (int i = 0; i < pivots.length; ++i) {
+            pivotPrefixes[i] = (long) LONGS.get(pivots[i], 0);
+        }
+
+        // firstPivot[p] is the number of pivots which two leading bytes are lower than p
+        firstPivot = new int[(1 << TABLE_BITS) + 1];
+        for (int p = 0, i = 0; p < firstPivot.length; ++p) {
+            while (i < pivots.length && tableIndex(pivotPrefixes[i]) < p) {
+                ++i;
+            }
+            firstPivot[p] = i;
+        }
+    }
+
+    public int bucketCount() {
+        return pivots.length + 1;
+    }
+
+    public int bucketOf(byte[] record, int offset) {
+        long prefix = (long) LONGS.get(record, offset);
+        int tableIndex = tableIndex(prefix);
+        int low = firstPivot[tableIndex];
+        int high = firstPivot[tableIndex + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, prefix, record, offset) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int pivot, long prefix, byte[] record, int offset) {
+        int r = Long.compareUnsigned(pivotPrefixes[pivot], prefix);
+        if (r != 0) {
+            return r;
+        }
+        return RecordComparator.compare(pivots[pivot], Long.BYTES,
+                record, offset + Long.BYTES,
+                RecordBuffer.RECORD_LENGTH - Long.BYTES);
+    }
+
+    private static int tableIndex(long prefix) {
+        return (int) (prefix >>> (Long.SIZE - TABLE_BITS));
+    }
+}
@@ -0,0 +1,40 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lock-free store of packed record chunks received from other threads.
+ * <p>
+ * Every sending thread has its own non-blocking queue, so chunks coming from different
+ * senders never contend, and a chunk costs one queue node instead of a list node per record.
+ * Once everything is received, chunks are drained into a {@link RecordBuffer} for sorting.
+ */
+public class ReceiveQueues {
+    private final Queue<byte[]>[] bySource;
+
+    @SuppressWarnings("unchecked")
+    public ReceiveQueues(int sources) {
+        bySource = (Queue<byte[]>[]) new Queue[sources];
+        for (int i = 0; i < sources; ++i) {
+            bySource[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public void add(int source, byte[] chunk) {
+        bySource[source].add(chunk);
+    }
+
+    /**
+     * Moves all received records to {@code records}, releasing chunks as they are copied.
+     */
+    public RecordBuffer drainTo(RecordBuffer records) {
+        for (Queue<byte[]> queue : bySource) {
+            byte[] chunk;
+            while ((chunk = queue.poll()) != null) {
+                records.addAll(chunk);
+            }
+        }
+        return records;
+    }
+}
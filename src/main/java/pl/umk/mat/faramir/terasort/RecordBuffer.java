@@ -0,0 +1,205 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap store of TeraSort records.
+ * <p>
+ * Records are packed contiguously, {@value #RECORD_LENGTH} bytes each, in direct memory chunks
+ * of {@code recordBuffer.chunkRecords} records, so keeping a billion records costs a handful
+ * of heap objects instead of an {@code Element} with two {@code Text} objects per record.
+ * The first chunk starts small and doubles until it reaches the full size, so many small
+ * buffers (e.g. one per destination thread) stay cheap.
+ * Records are addressed by their insertion index; sorting (see {@link KeySorter}) produces
+ * a primitive index array and the records themselves are only moved when they are written out.
+ */
+public class RecordBuffer implements AutoCloseable {
+    public static final int RECORD_LENGTH = 100;
+    public static final int KEY_LENGTH = 10;
+    public static final int VALUE_LENGTH = RECORD_LENGTH - KEY_LENGTH;
+
+    private static final int CHUNK_SHIFT = 31 - Integer.numberOfLeadingZeros(
+            Integer.parseInt(System.getProperty("recordBuffer.chunkRecords", "262144")));
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+    private static final int FIRST_CHUNK_RECORDS = Math.min(1024, CHUNK_RECORDS);
+
+    private final List<ByteBuffer> chunks;
+    private final List<ByteBuffer> readViews;
+    private int size;
+
+    public RecordBuffer() {
+        chunks = new ArrayList<>();
+        readViews = new ArrayList<>();
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Appends one record read from the current position of {@code src}, advancing it.
+     */
+    public void add(ByteBuffer src) {
+        ByteBuffer chunk = writableChunk();
+        int limit = src.limit();
+        src.limit(src.position() + RECORD_LENGTH);
+        chunk.put(src);
+        src.limit(limit);
+        ++size;
+    }
+
+    public void add(byte[] src, int offset) {
+        writableChunk().put(src, offset, RECORD_LENGTH);
+        ++size;
+    }
+
+    /**
+     * Appends all records packed in {@code src}, as produced by {@link #toByteArray()}.
+     */
+    public void addAll(byte[] src) {
+        int offset = 0;
+        while (offset < src.length) {
+            ByteBuffer chunk = writableChunk();
+            int length = Math.min(src.length - offset, chunk.remaining());
+            chunk.put(src, offset, length);
+            offset += length;
+            size += length / RECORD_LENGTH;
+        }
+    }
+
+    /**
+     * Returns all records packed one after another in insertion order.
+     */
+    public byte[] toByteArray() {
+        return toByteArray(List.of(this));
+    }
+
+    /**
+     * Returns all records of {@code parts} packed one after another, part by part.
+     */
+    public static byte[] toByteArray(List<RecordBuffer> parts) {
+        long size = parts.stream().mapToLong(RecordBuffer::size).sum();
+        if (size * RECORD_LENGTH > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many records to pack into one array: " + size);
+        }
+        byte[] packed = new byte[(int) size * RECORD_LENGTH];
+        int offset = 0;
+        for (RecordBuffer part : parts) {
+            int end = offset + part.size * RECORD_LENGTH;
+            for (int chunkNo = 0; offset < end; ++chunkNo) {
+                ByteBuffer view = part.readViews.get(chunkNo);
+                int length = Math.min(end - offset, view.capacity());
+                view.position(0);
+                view.get(packed, offset, length);
+                offset += length;
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Copies record {@code index} into {@code dst} starting at {@code offset}.
+     */
+    public void get(int index, byte[] dst, int offset) {
+        ByteBuffer view = readViews.get(index >>> CHUNK_SHIFT);
+        view.position((index & CHUNK_MASK) * RECORD_LENGTH);
+        view.get(dst, offset, RECORD_LENGTH);
+    }
+
+    /**
+     * Copies record {@code index} into {@code dst} at its current position.
+     */
+    public void get(int index, ByteBuffer dst) {
+        ByteBuffer view = readViews.get(index >>> CHUNK_SHIFT);
+        int offset = (index & CHUNK_MASK) * RECORD_LENGTH;
+        view.limit(offset + RECORD_LENGTH).position(offset);
+        dst.put(view);
+        view.limit(view.capacity());
+    }
+
+    /**
+     * Compares two stored records as unsigned bytes, key first and then value,
+     * which is the order of {@code Element.compareTo}.
+     */
+    public int compare(int left, int right) {
+        ByteBuffer leftChunk = chunks.get(left >>> CHUNK_SHIFT);
+        ByteBuffer rightChunk = chunks.get(right >>> CHUNK_SHIFT);
+        int leftOffset = (left & CHUNK_MASK) * RECORD_LENGTH;
+        int rightOffset = (right & CHUNK_MASK) * RECORD_LENGTH;
+        for (int i = 0; i + Long.BYTES <= RECORD_LENGTH; i += Long.BYTES) {
+            int r = Long.compareUnsigned(leftChunk.getLong(leftOffset + i), rightChunk.getLong(rightOffset + i));
+            if (r != 0) {
+                return r;
+            }
+        }
+        return Integer.compareUnsigned(leftChunk.getInt(leftOffset + RECORD_LENGTH - Integer.BYTES),
+                rightChunk.getInt(rightOffset + RECORD_LENGTH - Integer.BYTES));
+    }
+
+    /**
+     * Returns the first 8 bytes of the key of record {@code index} as a big-endian long,
+     * so unsigned comparison of prefixes matches byte-wise key order.
+     */
+    public long keyPrefix(int index) {
+        return chunks.get(index >>> CHUNK_SHIFT).getLong((index & CHUNK_MASK) * RECORD_LENGTH);
+    }
+
+    /**
+     * Returns the last 2 bytes of the key of record {@code index} as an unsigned value.
+     */
+    public int keySuffix(int index) {
+        return chunks.get(index >>> CHUNK_SHIFT).getShort((index & CHUNK_MASK) * RECORD_LENGTH + Long.BYTES) & 0xFFFF;
+    }
+
+    /**
+     * Returns indices of stored records in ascending record order.
+     */
+    public int[] sort() {
+        return KeySorter.sort(this);
+    }
+
+    /**
+     * Forgets stored records, keeping already allocated memory for reuse.
+     */
+    public void clear() {
+        chunks.forEach(ByteBuffer::clear);
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        chunks.clear();
+        readViews.clear();
+        size = 0;
+    }
+
+    private ByteBuffer writableChunk() {
+        int chunkNo = size >>> CHUNK_SHIFT;
+        if (chunkNo == chunks.size()) {
+            int chunkRecords = chunkNo == 0 ? FIRST_CHUNK_RECORDS : CHUNK_RECORDS;
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkRecords * RECORD_LENGTH);
+            chunks.add(chunk);
+            readViews.add(chunk.duplicate());
+            return chunk;
+        }
+        ByteBuffer chunk = chunks.get(chunkNo);
+        if (!chunk.hasRemaining()) {
+            // only the first chunk can be smaller than full size
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.min(2 * chunk.capacity(), CHUNK_RECORDS * RECORD_LENGTH));
+            chunk.flip();
+            grown.put(chunk);
+            chunks.set(chunkNo, grown);
+            readViews.set(chunkNo, grown.duplicate());
+            chunk = grown;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,44 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compares raw keys and records as unsigned bytes.
+ * <p>
+ * Random keys almost always differ within the first bytes, where a plain byte loop is cheaper
+ * than setting up an intrinsic call, so the first {@value RecordBuffer#KEY_LENGTH} bytes are
+ * compared one by one. Only when they are equal, the rest goes through
+ * {@link Arrays#compareUnsigned(byte[], int, int, byte[], int, int)}, which the JVM intrinsifies
+ * to find the first mismatch with wide vector loads; it wins on long common prefixes, e.g.
+ * values of records with equal keys. See {@code RecordComparatorBenchmark}.
+ */
+public final class RecordComparator implements Comparator<byte[]> {
+    public static final RecordComparator INSTANCE = new RecordComparator();
+
+    private RecordComparator() {
+    }
+
+    @Override
+    public int compare(byte[] left, byte[] right) {
+        int r = compare(left, 0, right, 0, Math.min(left.length, right.length));
+        return r != 0 ? r : Integer.compare(left.length, right.length);
+    }
+
+    /**
+     * Compares {@code length} bytes of {@code left} and {@code right} starting at given offsets.
+     */
+    public static int compare(byte[] left, int leftOffset, byte[] right, int rightOffset, int length) {
+        int head = Math.min(length, RecordBuffer.KEY_LENGTH);
+        for (int i = 0; i < head; ++i) {
+            int r = Integer.compare(left[leftOffset + i] & 0xFF, right[rightOffset + i] & 0xFF);
+            if (r != 0) {
+                return r;
+            }
+        }
+        if (head == length) {
+            return 0;
+        }
+        return Arrays.compareUnsigned(left, leftOffset + head, leftOffset + length, right, rightOffset + head, rightOffset + length);
+    }
+}
@@ -0,0 +1,254 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read, partition and send stages connected by bounded queues.
+ * <p>
+ * Readers pack raw records into blocks of {@code pipeline.blockRecords} records. Partitioner
+ * threads ({@code pipeline.partitioners}) compute bucket numbers of whole blocks, and a single
+ * sender thread owns the {@link ChunkSender}, so network I/O and flow control never block
+ * reading. Queues hold at most {@code pipeline.queueBlocks} blocks each, so a slow stage
+ * stops earlier ones instead of buffering the input. Sent blocks are returned to a bounded
+ * queue of free blocks and reused by readers, so blocks are allocated only until the
+ * pipeline is full.
+ * <p>
+ * Every stage records time spent working and time spent waiting for its input and for room
+ * in its output queue; {@link #report()} shows which stage is the bottleneck.
+ * Stage threads are started from the calling thread and belong to its thread group.
+ */
+public class RecordPipeline {
+    private static final int BLOCK_RECORDS = Integer.parseInt(System.getProperty("pipeline.blockRecords", "4096"));
+    private static final int QUEUE_BLOCKS = Integer.parseInt(System.getProperty("pipeline.queueBlocks", "16"));
+    private static final int PARTITIONERS = Integer.parseInt(System.getProperty("pipeline.partitioners", "1"));
+    private static final Block END = new Block(0);
+
+    private final PivotRouter router;
+    private final ChunkSender sender;
+    private final BlockingQueue<Block> raw;
+    private final BlockingQueue<Block> partitioned;
+    private final BlockingQueue<Block> free;
+    private final Thread[] partitioners;
+    private final Thread senderThread;
+    private final StageMetrics readerMetrics;
+    private final StageMetrics partitionerMetrics;
+    private final StageMetrics senderMetrics;
+    private final long startTime;
+    private volatile Throwable failure;
+
+    public RecordPipeline(PivotRouter router, ChunkSender sender) {
+        this.router = router;
+        this.sender = sender;
+        this.raw = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        this.partitioned = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        // enough for every block which may be queued or processed at once
+        this.free = new ArrayBlockingQueue<>(2 * QUEUE_BLOCKS + PARTITIONERS + 1);
+        this.readerMetrics = new StageMetrics();
+        this.partitionerMetrics = new StageMetrics();
+        this.senderMetrics = new StageMetrics();
+        this.startTime = System.nanoTime();
+
+        this.partitioners = new Thread[PARTITIONERS];
+        for (int i = 0; i < partitioners.length; ++i) {
+            partitioners[i] = new Thread(() -> runStage(this::partition, raw), "pipeline-partitioner-" + i);
+            partitioners[i].setDaemon(true);
+            partitioners[i].start();
+        }
+        this.senderThread = new Thread(() -> runStage(this::send, partitioned), "pipeline-sender");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    public static String configuration() {
+        return String.format(Locale.ENGLISH, "%d records per block, %d blocks per queue, %d partitioners",
+                BLOCK_RECORDS, QUEUE_BLOCKS, PARTITIONERS);
+    }
+
+    /**
+     * Returns a new reader end of the pipeline; every reader thread needs its own.
+     */
+    public Producer producer() {
+        return new Producer();
+    }
+
+    /**
+     * Waits until all records given to flushed producers are sent and delivered.
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < partitioners.length; ++i) {
+            raw.put(END);
+        }
+        for (Thread partitioner : partitioners) {
+            partitioner.join();
+        }
+        partitioned.put(END);
+        senderThread.join();
+        if (failure != null) {
+            throw new IllegalStateException("Pipeline stage failed", failure);
+        }
+    }
+
+    /**
+     * Returns utilization of stages; time is summed over all threads of a stage.
+     */
+    public String report() {
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        return String.format(Locale.ENGLISH, "elapsed %.3f s; read: %s; partition: %s; send: %s",
+                elapsed, readerMetrics, partitionerMetrics, senderMetrics);
+    }
+
+    private void partition() throws InterruptedException {
+        while (true) {
+            Block block = take(raw, partitionerMetrics);
+            if (block == END) {
+                return;
+            }
+            long workStart = System.nanoTime();
+            for (int i = 0; i < block.count; ++i) {
+                block.buckets[i] = router.bucketOf(block.records, i * RecordBuffer.RECORD_LENGTH);
+            }
+            partitionerMetrics.add(workStart, block.count);
+            put(partitioned, block, partitionerMetrics);
+        }
+    }
+
+    private void send() throws InterruptedException {
+        while (true) {
+            Block block = take(partitioned, senderMetrics);
+            if (block == END) {
+                break;
+            }
+            long workStart = System.nanoTime();
+            for (int i = 0; i < block.count; ++i) {
+                sender.add(block.buckets[i], block.records, i * RecordBuffer.RECORD_LENGTH);
+            }
+            senderMetrics.add(workStart, block.count);
+            block.count = 0;
+            free.offer(block);
+        }
+        long workStart = System.nanoTime();
+        sender.finish();
+        senderMetrics.add(workStart, 0);
+    }
+
+    private void runStage(Stage stage, BlockingQueue<Block> input) {
+        try {
+            stage.run();
+        } catch (Throwable t) {
+            failure = t;
+            try {
+                // a failed stage keeps consuming its input, so that earlier stages never block on it
+                while (input.take() != END) {
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Block take(BlockingQueue<Block> queue, StageMetrics metrics) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        Block block = queue.take();
+        metrics.addInputWait(System.nanoTime() - waitStart);
+        return block;
+    }
+
+    private static void put(BlockingQueue<Block> queue, Block block, StageMetrics metrics) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        queue.put(block);
+        metrics.addOutputWait(System.nanoTime() - waitStart);
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * Packs records read by one reader thread into blocks.
+     * <p>
+     * Work of a reader is the time of reading and packing records of a block, from the end of
+     * the previous handover (or creation of the producer) to the handover of the block.
+     */
+    public class Producer {
+        private long workStart = System.nanoTime();
+        private Block current;
+
+        public void add(byte[] records, int offset) {
+            if (current == null) {
+                current = free.poll();
+                if (current == null) {
+                    current = new Block(BLOCK_RECORDS);
+                }
+            }
+            System.arraycopy(records, offset, current.records, current.count * RecordBuffer.RECORD_LENGTH,
+                    RecordBuffer.RECORD_LENGTH);
+            if (++current.count == BLOCK_RECORDS) {
+                handOver();
+            }
+        }
+
+        /**
+         * Hands over the last, possibly partial, block.
+         */
+        public void flush() {
+            if (current != null) {
+                handOver();
+            }
+        }
+
+        private void handOver() {
+            readerMetrics.add(workStart, current.count);
+            try {
+                put(raw, current, readerMetrics);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading input", ex);
+            }
+            current = null;
+            workStart = System.nanoTime();
+            if (failure != null) {
+                throw new IllegalStateException("Pipeline stage failed", failure);
+            }
+        }
+    }
+
+    private static class Block {
+        private final byte[] records;
+        private final int[] buckets;
+        private int count;
+
+        private Block(int capacity) {
+            this.records = new byte[capacity * RecordBuffer.RECORD_LENGTH];
+            this.buckets = new int[capacity];
+        }
+    }
+
+    private static class StageMetrics {
+        private long workNanos;
+        private long inputWaitNanos;
+        private long outputWaitNanos;
+        private long records;
+
+        private synchronized void add(long workStart, int count) {
+            workNanos += System.nanoTime() - workStart;
+            records += count;
+        }
+
+        private synchronized void addInputWait(long nanos) {
+            inputWaitNanos += nanos;
+        }
+
+        private synchronized void addOutputWait(long nanos) {
+            outputWaitNanos += nanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH, "%d records, work %.3f s, input wait %.3f s, output wait %.3f s",
+                    records, workNanos / 1e9, inputWaitNanos / 1e9, outputWaitNanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+
+/**
+ * Writes consecutive records into a region of an output file shared by all threads.
+ */
+public interface RecordWriter extends AutoCloseable {
+    void write(RecordBuffer records, int index) throws IOException;
+
+    /**
+     * Returns a short summary of the work done by the writer, for reporting.
+     */
+    String statistics();
+
+    @Override
+    void close() throws IOException;
+}
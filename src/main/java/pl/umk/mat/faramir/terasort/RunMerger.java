@@ -0,0 +1,120 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Merges sorted runs of packed records into one ascending stream.
+ * <p>
+ * Every run is given as blocks of packed records, e.g. one array for a run kept in memory
+ * or consecutive reads of a spilled run. Runs are merged with a loser tree, so writing every
+ * record costs {@code log2(runs)} comparisons with one comparison per tree level. Head records
+ * are compared on their primitive 8-byte key prefixes first; whole records are compared only
+ * when prefixes are equal. A block is released as soon as its last record is written.
+ */
+public class RunMerger {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Iterator<byte[]>[] sources;
+    private final byte[][] blocks;
+    private final int[] positions;
+    private final long[] headPrefixes;
+    private final int[] tree;
+
+    @SuppressWarnings("unchecked")
+    public RunMerger(List<Iterator<byte[]>> runs) {
+        this.sources = (Iterator<byte[]>[]) runs.toArray(new Iterator[0]);
+        this.blocks = new byte[sources.length][];
+        this.positions = new int[sources.length];
+        this.headPrefixes = new long[sources.length];
+        this.tree = new int[Math.max(sources.length, 1)];
+
+        for (int i = 0; i < sources.length; ++i) {
+            nextBlock(i);
+        }
+        if (sources.length > 0) {
+            tree[0] = build(1);
+        }
+    }
+
+    /**
+     * Writes all records to {@code output} in ascending order.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        if (sources.length == 0) {
+            return;
+        }
+        int winner = tree[0];
+        while (blocks[winner] != null) {
+            output.write(blocks[winner], positions[winner], RecordBuffer.RECORD_LENGTH);
+            advance(winner);
+            for (int node = (winner + sources.length) >>> 1; node > 0; node >>>= 1) {
+                if (less(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+        }
+        tree[0] = winner;
+    }
+
+    // leaves are sources.length..2*sources.length-1, internal nodes keep the loser of their match
+    private int build(int node) {
+        if (node >= sources.length) {
+            return node - sources.length;
+        }
+        int left = build(2 * node);
+        int right = build(2 * node + 1);
+        if (less(right, left)) {
+            tree[node] = left;
+            return right;
+        }
+        tree[node] = right;
+        return left;
+    }
+
+    private void advance(int run) {
+        positions[run] += RecordBuffer.RECORD_LENGTH;
+        if (positions[run] == blocks[run].length) {
+            nextBlock(run);
+        } else {
+            headPrefixes[run] = (long) LONGS.get(blocks[run], positions[run]);
+        }
+    }
+
+    private void nextBlock(int run) {
+        blocks[run] = null;
+        positions[run] = 0;
+        while (sources[run].hasNext()) {
+            byte[] block = sources[run].next();
+            if (block.length > 0) {
+                blocks[run] = block;
+                headPrefixes[run] = (long) LONGS.get(block, 0);
+                return;
+            }
+        }
+    }
+
+    // exhausted runs are greater than any record
+    private boolean less(int left, int right) {
+        if (blocks[left] == null) {
+            return false;
+        }
+        if (blocks[right] == null) {
+            return true;
+        }
+        int r = Long.compareUnsigned(headPrefixes[left], headPrefixes[right]);
+        if (r == 0) {
+            r = RecordComparator.compare(blocks[left], positions[left] + Long.BYTES,
+                    blocks[right], positions[right] + Long.BYTES,
+                    RecordBuffer.RECORD_LENGTH - Long.BYTES);
+        }
+        return r < 0 || (r == 0 && left < right);
+    }
+}
@@ -0,0 +1,206 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps sorted runs of packed records within a memory budget.
+ * <p>
+ * Runs are kept on heap until they take more than {@code spill.memoryBytes} bytes; then all
+ * of them are merged into one sorted run in a file in one of {@link ScratchDirs}, so a thread
+ * can sort more records than fits in its memory. Spilled runs are read back in blocks of
+ * {@code spill.readBlockRecords} records while merging. Budget {@code 0} keeps everything
+ * in memory. Scratch files are deleted on {@link #close()}.
+ * <p>
+ * Runs kept in memory are handed over to the merger, which releases every run as soon as it
+ * is written, so they can be merged only once; spilled runs can be merged again.
+ */
+public class RunStore implements AutoCloseable {
+    private static final long MEMORY_BYTES = Long.parseLong(System.getProperty("spill.memoryBytes", "0"));
+    private static final int READ_BLOCK_RECORDS = Integer.parseInt(System.getProperty("spill.readBlockRecords", "10000"));
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final List<byte[]> memoryRuns;
+    private final List<Path> spilledRuns;
+    private long memoryBytes;
+    private long size;
+    private long spilledBytes;
+    private long spillNanos;
+    private boolean merged;
+
+    public RunStore() {
+        memoryRuns = new ArrayList<>();
+        spilledRuns = new ArrayList<>();
+    }
+
+    public static long memoryBudget() {
+        return MEMORY_BYTES;
+    }
+
+    /**
+     * Adds a sorted run, spilling runs kept in memory when the budget is exceeded.
+     */
+    public synchronized void add(byte[] run) throws IOException {
+        memoryRuns.add(run);
+        memoryBytes += run.length;
+        size += run.length / RecordBuffer.RECORD_LENGTH;
+        if (MEMORY_BYTES > 0 && memoryBytes > MEMORY_BYTES) {
+            spill();
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long spilledBytes() {
+        return spilledBytes;
+    }
+
+    public synchronized int spilledRuns() {
+        return spilledRuns.size();
+    }
+
+    public synchronized long spillNanos() {
+        return spillNanos;
+    }
+
+    /**
+     * Returns a new merger over all stored runs, handing over runs kept in memory.
+     */
+    public synchronized RunMerger merger() {
+        if (merged) {
+            throw new IllegalStateException("Runs kept in memory were already merged");
+        }
+        List<Iterator<byte[]>> sources = new ArrayList<>();
+        for (Path file : spilledRuns) {
+            sources.add(new FileRun(file));
+        }
+        merged = !memoryRuns.isEmpty();
+        sources.addAll(takeMemoryRuns());
+        return new RunMerger(sources);
+    }
+
+    /**
+     * Returns whether {@link #merger()} can be called, i.e. no runs kept in memory were handed over yet.
+     */
+    public synchronized boolean mergeable() {
+        return !merged;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        memoryRuns.clear();
+        for (Path file : spilledRuns) {
+            Files.deleteIfExists(file);
+        }
+        spilledRuns.clear();
+    }
+
+    private void spill() throws IOException {
+        long spillStart = System.nanoTime();
+        long bytes = memoryBytes;
+        RunMerger merger = new RunMerger(takeMemoryRuns());
+
+        Path file = ScratchDirs.createFile("terasort-run-", ".spill");
+        spilledRuns.add(file);
+        try (OutputStream output = new BufferedOutputStream(ScratchDirs.newOutputStream(file), WRITE_BUFFER_SIZE)) {
+            merger.writeTo(output);
+        }
+        spilledBytes += bytes;
+        spillNanos += System.nanoTime() - spillStart;
+    }
+
+    private List<Iterator<byte[]>> takeMemoryRuns() {
+        List<Iterator<byte[]>> sources = new ArrayList<>();
+        for (byte[] run : memoryRuns) {
+            sources.add(new MemoryRun(run));
+        }
+        memoryRuns.clear();
+        memoryBytes = 0;
+        return sources;
+    }
+
+    /**
+     * Hands over a run kept in memory once and drops the reference to it, so the merger
+     * is the only owner and releases the run as soon as it is written.
+     */
+    private static class MemoryRun implements Iterator<byte[]> {
+        private byte[] run;
+
+        private MemoryRun(byte[] run) {
+            this.run = run;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return run != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            byte[] next = run;
+            run = null;
+            return next;
+        }
+    }
+
+    /**
+     * Reads a spilled run in blocks; the same array is refilled for every full block.
+     */
+    private static class FileRun implements Iterator<byte[]> {
+        private final Path file;
+        private InputStream input;
+        private long remaining;
+        private byte[] block;
+
+        private FileRun(Path file) {
+            this.file = file;
+            this.remaining = -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining != 0;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                if (input == null) {
+                    remaining = Files.size(file);
+                    input = ScratchDirs.newInputStream(file);
+                    block = new byte[(int) Math.min(remaining, (long) READ_BLOCK_RECORDS * RecordBuffer.RECORD_LENGTH)];
+                }
+                if (remaining < block.length) {
+                    block = Arrays.copyOf(block, (int) remaining);
+                }
+                new DataInputStream(input).readFully(block);
+                remaining -= block.length;
+                if (remaining == 0) {
+                    input.close();
+                }
+                return block;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Places temporary files of all threads of the JVM in scratch directories.
+ * <p>
+ * Directories are given by {@code scratch.dirs}, separated by {@link File#pathSeparator},
+ * e.g. one directory on every local disk. New files are assigned to directories round-robin,
+ * so local I/O is spread over all disks. Bytes written and read through
+ * {@link #newOutputStream(Path)} and {@link #newInputStream(Path)} are counted per directory.
+ */
+public final class ScratchDirs {
+    private static final Path[] DIRS = parseDirs(System.getProperty("scratch.dirs", System.getProperty("java.io.tmpdir")));
+    private static final AtomicInteger nextDir = new AtomicInteger();
+    private static final AtomicInteger[] filesCreated = IntStream.range(0, DIRS.length)
+            .mapToObj(i -> new AtomicInteger()).toArray(AtomicInteger[]::new);
+    private static final AtomicLong[] bytesWritten = IntStream.range(0, DIRS.length)
+            .mapToObj(i -> new AtomicLong()).toArray(AtomicLong[]::new);
+    private static final AtomicLong[] bytesRead = IntStream.range(0, DIRS.length)
+            .mapToObj(i -> new AtomicLong()).toArray(AtomicLong[]::new);
+
+    private ScratchDirs() {
+    }
+
+    private static Path[] parseDirs(String dirs) {
+        Path[] paths = Arrays.stream(dirs.split(Pattern.quote(File.pathSeparator)))
+                .filter(dir -> !dir.isEmpty())
+                .map(Paths::get)
+                .toArray(Path[]::new);
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("No scratch directory given in scratch.dirs: '" + dirs + "'");
+        }
+        return paths;
+    }
+
+    public static int count() {
+        return DIRS.length;
+    }
+
+    /**
+     * Creates a new empty file in the next scratch directory.
+     */
+    public static Path createFile(String prefix, String suffix) throws IOException {
+        int dir = Math.floorMod(nextDir.getAndIncrement(), DIRS.length);
+        Files.createDirectories(DIRS[dir]);
+        Path file = Files.createTempFile(DIRS[dir], prefix, suffix);
+        filesCreated[dir].incrementAndGet();
+        return file;
+    }
+
+    public static OutputStream newOutputStream(Path file) throws IOException {
+        AtomicLong counter = bytesWritten[dirOf(file)];
+        return new FilterOutputStream(Files.newOutputStream(file)) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                counter.addAndGet(len);
+            }
+        };
+    }
+
+    public static InputStream newInputStream(Path file) throws IOException {
+        AtomicLong counter = bytesRead[dirOf(file)];
+        return new FilterInputStream(Files.newInputStream(file)) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    counter.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    counter.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns files created and bytes written and read in every scratch directory.
+     */
+    public static String report() {
+        return IntStream.range(0, DIRS.length)
+                .mapToObj(i -> String.format(Locale.ENGLISH, "%s: %d files, %d bytes written, %d bytes read",
+                        DIRS[i], filesCreated[i].get(), bytesWritten[i].get(), bytesRead[i].get()))
+                .collect(Collectors.joining("; "));
+    }
+
+    private static int dirOf(Path file) {
+        Path parent = file.toAbsolutePath().getParent();
+        for (int i = 0; i < DIRS.length; ++i) {
+            if (DIRS[i].toAbsolutePath().equals(parent)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a scratch file: " + file);
+    }
+}
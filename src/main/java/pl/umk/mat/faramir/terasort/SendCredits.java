@@ -0,0 +1,102 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import org.pcj.PcjFuture;
+
+/**
+ * Credit-based flow control for asynchronous sends.
+ * <p>
+ * Every destination has a credit of {@code maxInFlightBytes}. Sending a message takes
+ * its size from the credit of its destination and the credit is given back when the
+ * delivery future completes. {@link PcjFuture} has no completion callbacks, so completed
+ * deliveries are collected on every {@link #acquire(int, int)}; when the credit is still
+ * too low, the caller blocks on the oldest delivery. A message is always let through when
+ * nothing is in flight to its destination, so messages larger than the credit still pass.
+ * <p>
+ * Time spent blocked and number of blocking waits are recorded for reporting.
+ */
+public class SendCredits {
+    private final long maxInFlightBytes;
+    private final Deque<InFlight>[] inFlight;
+    private final long[] inFlightBytes;
+    private long blockedNanos;
+    private long blockedCount;
+
+    @SuppressWarnings("unchecked")
+    public SendCredits(int destinations, long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.inFlight = (Deque<InFlight>[]) new Deque[destinations];
+        for (int i = 0; i < destinations; ++i) {
+            inFlight[i] = new ArrayDeque<>();
+        }
+        this.inFlightBytes = new long[destinations];
+    }
+
+    /**
+     * Waits until {@code bytes} can be sent to {@code destination}.
+     */
+    public void acquire(int destination, int bytes) {
+        Deque<InFlight> deliveries = inFlight[destination];
+        for (Iterator<InFlight> it = deliveries.iterator(); it.hasNext(); ) {
+            InFlight delivery = it.next();
+            if (delivery.future.isDone()) {
+                it.remove();
+                release(destination, delivery);
+            }
+        }
+        if (!deliveries.isEmpty() && inFlightBytes[destination] + bytes > maxInFlightBytes) {
+            long blockingStart = System.nanoTime();
+            while (!deliveries.isEmpty() && inFlightBytes[destination] + bytes > maxInFlightBytes) {
+                release(destination, deliveries.pollFirst());
+            }
+            blockedNanos += System.nanoTime() - blockingStart;
+            ++blockedCount;
+        }
+    }
+
+    /**
+     * Registers sent message; {@code null} future means the message was delivered synchronously.
+     */
+    public void register(int destination, int bytes, PcjFuture<Void> future) {
+        if (future != null) {
+            inFlight[destination].addLast(new InFlight(future, bytes));
+            inFlightBytes[destination] += bytes;
+        }
+    }
+
+    /**
+     * Waits until all registered messages are delivered.
+     */
+    public void awaitAll() {
+        for (int i = 0; i < inFlight.length; ++i) {
+            while (!inFlight[i].isEmpty()) {
+                release(i, inFlight[i].pollFirst());
+            }
+        }
+    }
+
+    public long blockedNanos() {
+        return blockedNanos;
+    }
+
+    public long blockedCount() {
+        return blockedCount;
+    }
+
+    private void release(int destination, InFlight delivery) {
+        delivery.future.get();
+        inFlightBytes[destination] -= delivery.bytes;
+    }
+
+    private static class InFlight {
+        private final PcjFuture<Void> future;
+        private final int bytes;
+
+        private InFlight(PcjFuture<Void> future, int bytes) {
+            this.future = future;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorts packed record chunks as soon as they are received.
+ * <p>
+ * Every added chunk is sorted in place by a pool of {@code sortedRuns.threads} workers,
+ * so sorting overlaps with receiving and only the last chunks remain to be sorted once
+ * the exchange is over. Sorted chunks are kept as runs in a {@link RunStore}, which spills
+ * them to scratch files when they exceed its memory budget, and are merged while saving.
+ * Worker threads are started on the first added chunk.
+ * <p>
+ * Chunks waiting for a worker take at most {@code sortedRuns.maxQueuedBytes} bytes; when
+ * sorting falls behind, {@link #add(byte[])} blocks, which holds the delivery of the chunk
+ * and with it the send credits of its sender, so receiving slows down to the sorting speed.
+ * A chunk larger than the limit passes alone. Time spent blocked is recorded for reporting.
+ */
+public class SortedRuns implements AutoCloseable {
+    private static final int THREADS = Integer.parseInt(System.getProperty("sortedRuns.threads", "1"));
+    private static final int MAX_QUEUED_BYTES = Integer.parseInt(System.getProperty("sortedRuns.maxQueuedBytes", "268435456"));
+
+    private final ExecutorService workers;
+    private final Queue<Future<?>> pending;
+    private final ThreadLocal<RecordBuffer> scratch;
+    private final RunStore runs;
+    private final Semaphore queued;
+    private final AtomicLong blockedNanos;
+
+    public SortedRuns() {
+        workers = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "sorted-runs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pending = new ConcurrentLinkedQueue<>();
+        scratch = ThreadLocal.withInitial(RecordBuffer::new);
+        runs = new RunStore();
+        queued = new Semaphore(MAX_QUEUED_BYTES);
+        blockedNanos = new AtomicLong();
+    }
+
+    public static int threads() {
+        return THREADS;
+    }
+
+    public static int maxQueuedBytes() {
+        return MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * Schedules sorting of records packed in {@code chunk}, waiting while too many bytes are
+     * queued; the chunk is sorted in place.
+     */
+    public void add(byte[] chunk) {
+        int permits = Math.min(chunk.length, MAX_QUEUED_BYTES);
+        if (!queued.tryAcquire(permits)) {
+            long blockingStart = System.nanoTime();
+            queued.acquireUninterruptibly(permits);
+            blockedNanos.addAndGet(System.nanoTime() - blockingStart);
+        }
+        pending.add(workers.submit(() -> {
+            try {
+                runs.add(sortRun(chunk));
+            } finally {
+                queued.release(permits);
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Returns total time of {@link #add(byte[])} calls blocked on the queue limit.
+     */
+    public long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * Waits until all added chunks are sorted and returns the store of sorted runs.
+     */
+    public RunStore awaitRuns() throws InterruptedException, ExecutionException {
+        Future<?> run;
+        while ((run = pending.poll()) != null) {
+            run.get();
+        }
+        return runs;
+    }
+
+    /**
+     * Stops workers and deletes spilled runs.
+     */
+    @Override
+    public void close() throws IOException {
+        workers.shutdown();
+        runs.close();
+    }
+
+    private byte[] sortRun(byte[] chunk) {
+        RecordBuffer records = scratch.get();
+        records.clear();
+        records.addAll(chunk);
+        // workers already keep cores busy, so every chunk is sorted by a single thread
+        int[] order = KeySorter.sort(records, 1);
+        for (int i = 0; i < order.length; ++i) {
+            records.get(order[i], chunk, i * RecordBuffer.RECORD_LENGTH);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,322 @@
+package pl.umk.mat.faramir.terasort;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Assigns record ranges of HDFS input to threads, preferring blocks stored on the host
+ * of the thread.
+ * <p>
+ * Every thread gets the same number of records as with an even split by thread number, but
+ * records are taken from blocks with a replica on its host where possible, so that they are
+ * read locally (short-circuit) instead of over the network. The number of local records is
+ * maximized by a maximum flow from blocks to hosts, limited by block sizes and by the sum of
+ * quotas of threads of every host; whatever cannot be read locally is split between threads
+ * which still need records. A record belongs to the block where it starts.
+ */
+public final class SplitPlanner {
+
+    private SplitPlanner() {
+    }
+
+    /**
+     * Assignment of records to threads: {@code ranges[thread]} holds pairs of
+     * {@code [start, end)} element positions in ascending order.
+     */
+    public static class Plan implements Serializable {
+        private final long[][] ranges;
+        private final long localElements;
+        private final long totalElements;
+
+        Plan(long[][] ranges, long localElements, long totalElements) {
+            this.ranges = ranges;
+            this.localElements = localElements;
+            this.totalElements = totalElements;
+        }
+
+        public long[][] ranges() {
+            return ranges;
+        }
+
+        public long localElements() {
+            return localElements;
+        }
+
+        public long totalElements() {
+            return totalElements;
+        }
+    }
+
+    /**
+     * Block of input as positions of the elements starting in it, with hosts storing its replicas.
+     */
+    static class Block {
+        private final long startElement;
+        private final long endElement;
+        private final Set<String> hosts;
+
+        Block(long startElement, long endElement, Set<String> hosts) {
+            this.startElement = startElement;
+            this.endElement = endElement;
+            this.hosts = hosts;
+        }
+
+        long startElement() {
+            return startElement;
+        }
+
+        long endElement() {
+            return endElement;
+        }
+
+        Set<String> hosts() {
+            return hosts;
+        }
+    }
+
+    /**
+     * Returns name of the local host in the form used for matching with HDFS block hosts.
+     */
+    public static String localHost() throws IOException {
+        return normalize(InetAddress.getLocalHost().getHostName());
+    }
+
+    /**
+     * Plans reading of input files by threads running on {@code threadHosts}.
+     */
+    public static Plan plan(FileSystem hdfsFileSystem, HdfsInputFiles files, String[] threadHosts) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < files.count(); ++i) {
+            long baseElement = files.fileStart(i);
+            long fileElements = files.fileStart(i + 1) - baseElement;
+            BlockLocation[] locations = hdfsFileSystem.getFileBlockLocations(files.path(i), 0, files.size(i));
+            Arrays.sort(locations, Comparator.comparingLong(BlockLocation::getOffset));
+            for (int b = 0; b < locations.length; ++b) {
+                long start = ceilElement(locations[b].getOffset());
+                long end = b + 1 < locations.length ? ceilElement(locations[b + 1].getOffset()) : fileElements;
+                if (start < end) {
+                    Set<String> hosts = Arrays.stream(locations[b].getHosts())
+                            .map(SplitPlanner::normalize)
+                            .collect(Collectors.toSet());
+                    blocks.add(new Block(baseElement + start, baseElement + end, hosts));
+                }
+            }
+            if (locations.length == 0 && fileElements > 0) {
+                blocks.add(new Block(baseElement, baseElement + fileElements, Set.of()));
+            }
+        }
+        return plan(blocks, threadHosts, files.length());
+    }
+
+    static Plan plan(List<Block> blocks, String[] threadHosts, long totalElements) {
+        int threads = threadHosts.length;
+        long[] quota = new long[threads];
+        for (int t = 0; t < threads; ++t) {
+            long[] split = HdfsInputFiles.evenSplit(totalElements, t, threads);
+            quota[t] = split[1] - split[0];
+        }
+        List<List<long[]>> assigned = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            assigned.add(new ArrayList<>());
+        }
+
+        // first local reads, as many as a flow from blocks through hosts to threads allows
+        List<String> hosts = Arrays.stream(threadHosts)
+                .map(SplitPlanner::normalize)
+                .distinct()
+                .collect(Collectors.toList());
+        int[][] hostThreads = hosts.stream()
+                .map(host -> IntStream.range(0, threads).filter(t -> normalize(threadHosts[t]).equals(host)).toArray())
+                .toArray(int[][]::new);
+        FlowNetwork network = new FlowNetwork(blocks.size() + hosts.size() + 2);
+        int source = blocks.size() + hosts.size();
+        int sink = source + 1;
+        int[][] localEdges = new int[blocks.size()][hosts.size()];
+        for (int b = 0; b < blocks.size(); ++b) {
+            Block block = blocks.get(b);
+            network.addEdge(source, b, block.endElement - block.startElement);
+            for (int h = 0; h < hosts.size(); ++h) {
+                localEdges[b][h] = block.hosts.contains(hosts.get(h))
+                        ? network.addEdge(b, blocks.size() + h, Long.MAX_VALUE) : -1;
+            }
+        }
+        for (int h = 0; h < hosts.size(); ++h) {
+            network.addEdge(blocks.size() + h, sink, Arrays.stream(hostThreads[h]).mapToLong(t -> quota[t]).sum());
+        }
+        long localElements = network.maxFlow(source, sink);
+
+        long[] taken = new long[blocks.size()];
+        int[] hostThread = new int[hosts.size()];
+        for (int b = 0; b < blocks.size(); ++b) {
+            for (int h = 0; h < hosts.size(); ++h) {
+                long local = localEdges[b][h] < 0 ? 0 : network.flow(localEdges[b][h]);
+                while (local > 0) {
+                    int thread = hostThreads[h][hostThread[h]];
+                    if (quota[thread] == 0) {
+                        ++hostThread[h];
+                        continue;
+                    }
+                    long start = blocks.get(b).startElement + taken[b];
+                    long count = Math.min(quota[thread], local);
+                    assigned.get(thread).add(new long[]{start, start + count});
+                    quota[thread] -= count;
+                    taken[b] += count;
+                    local -= count;
+                }
+            }
+        }
+
+        // then the rest, in input order
+        int t = 0;
+        for (int b = 0; b < blocks.size(); ++b) {
+            Block block = blocks.get(b);
+            while (block.startElement + taken[b] < block.endElement) {
+                while (quota[t] == 0) {
+                    ++t;
+                }
+                long start = block.startElement + taken[b];
+                long count = Math.min(quota[t], block.endElement - start);
+                assigned.get(t).add(new long[]{start, start + count});
+                quota[t] -= count;
+                taken[b] += count;
+            }
+        }
+
+        long[][] ranges = new long[threads][];
+        for (int i = 0; i < threads; ++i) {
+            ranges[i] = merge(assigned.get(i));
+        }
+        return new Plan(ranges, localElements, totalElements);
+    }
+
+    /**
+     * Flow network with maximum flow found by Dinic's algorithm; edges are added in pairs
+     * with the reverse (residual) edge right after the forward one.
+     */
+    private static class FlowNetwork {
+        private final List<List<Integer>> adjacency = new ArrayList<>();
+        private final List<Integer> targets = new ArrayList<>();
+        private final List<Long> capacities = new ArrayList<>();
+        private final List<Long> flows = new ArrayList<>();
+        private int[] levels;
+        private int[] nextEdge;
+
+        FlowNetwork(int nodes) {
+            for (int i = 0; i < nodes; ++i) {
+                adjacency.add(new ArrayList<>());
+            }
+        }
+
+        int addEdge(int from, int to, long capacity) {
+            int edge = targets.size();
+            adjacency.get(from).add(edge);
+            targets.add(to);
+            capacities.add(capacity);
+            flows.add(0L);
+            adjacency.get(to).add(edge + 1);
+            targets.add(from);
+            capacities.add(0L);
+            flows.add(0L);
+            return edge;
+        }
+
+        long flow(int edge) {
+            return flows.get(edge);
+        }
+
+        long maxFlow(int source, int sink) {
+            long total = 0;
+            while (buildLevels(source, sink)) {
+                nextEdge = new int[adjacency.size()];
+                long pushed;
+                while ((pushed = push(source, sink, Long.MAX_VALUE)) > 0) {
+                    total += pushed;
+                }
+            }
+            return total;
+        }
+
+        private long residual(int edge) {
+            return capacities.get(edge) - flows.get(edge);
+        }
+
+        private boolean buildLevels(int source, int sink) {
+            levels = new int[adjacency.size()];
+            Arrays.fill(levels, -1);
+            levels[source] = 0;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(source);
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                for (int edge : adjacency.get(node)) {
+                    int target = targets.get(edge);
+                    if (levels[target] < 0 && residual(edge) > 0) {
+                        levels[target] = levels[node] + 1;
+                        queue.add(target);
+                    }
+                }
+            }
+            return levels[sink] >= 0;
+        }
+
+        private long push(int node, int sink, long limit) {
+            if (node == sink) {
+                return limit;
+            }
+            List<Integer> edges = adjacency.get(node);
+            for (; nextEdge[node] < edges.size(); ++nextEdge[node]) {
+                int edge = edges.get(nextEdge[node]);
+                int target = targets.get(edge);
+                if (levels[target] == levels[node] + 1 && residual(edge) > 0) {
+                    long pushed = push(target, sink, Math.min(limit, residual(edge)));
+                    if (pushed > 0) {
+                        flows.set(edge, flows.get(edge) + pushed);
+                        flows.set(edge ^ 1, flows.get(edge ^ 1) - pushed);
+                        return pushed;
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static long[] merge(List<long[]> ranges) {
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] == range[0]) {
+                last[1] = range[1];
+            } else {
+                merged.add(range.clone());
+            }
+        }
+        return merged.stream().flatMapToLong(Arrays::stream).toArray();
+    }
+
+    private static long ceilElement(long offset) {
+        return (offset + RecordBuffer.RECORD_LENGTH - 1) / RecordBuffer.RECORD_LENGTH;
+    }
+
+    // HDFS may report short or fully qualified names; addresses are kept as they are
+    private static String normalize(String host) {
+        String name = host.toLowerCase(Locale.ENGLISH);
+        int dot = name.indexOf('.');
+        if (dot > 0 && !Character.isDigit(name.charAt(0))) {
+            return name.substring(0, dot);
+        }
+        return name;
+    }
+}
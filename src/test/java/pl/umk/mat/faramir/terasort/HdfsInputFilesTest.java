@@ -0,0 +1,140 @@
+package pl.umk.mat.faramir.terasort;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HdfsInputFilesTest {
+    private static final int RECORD_LENGTH = RecordBuffer.RECORD_LENGTH;
+
+    @TempDir
+    Path dir;
+
+    private LocalFileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileSystem = FileSystem.getLocal(new Configuration());
+    }
+
+    private Path write(String name, long records) throws IOException {
+        return write(name, new byte[(int) (records * RECORD_LENGTH)]);
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        return Files.write(dir.resolve(name), content);
+    }
+
+    @Test
+    void singleFileLengthIsNumberOfRecords() throws IOException {
+        Path file = write("input", 37);
+
+        HdfsInputFiles files = HdfsInputFiles.list(fileSystem, file.toString());
+
+        assertEquals(1, files.count());
+        assertEquals(37L * RECORD_LENGTH, files.size(0));
+        assertEquals(37, files.length());
+        assertEquals(0, files.fileOf(0));
+        assertEquals(0, files.fileOf(36));
+    }
+
+    @Test
+    void directoryWithEmptyPartFiles() throws IOException {
+        write("part-00000", 0);
+        write("part-00001", 5);
+        write("part-00002", 0);
+        write("part-00003", 0);
+        write("part-00004", 3);
+        write("part-00005", 0);
+        write("_SUCCESS", new byte[0]);
+
+        HdfsInputFiles files = HdfsInputFiles.list(fileSystem, dir.toString());
+
+        assertEquals(6, files.count());
+        assertEquals(8, files.length());
+        long[] starts = new long[files.count() + 1];
+        for (int file = 0; file <= files.count(); ++file) {
+            starts[file] = files.fileStart(file);
+        }
+        int[] sizes = new int[files.count()];
+        for (int file = 0; file < files.count(); ++file) {
+            sizes[file] = (int) (files.size(file) / RECORD_LENGTH);
+        }
+        for (long element = 0; element < files.length(); ++element) {
+            int file = files.fileOf(element);
+            assertTrue(sizes[file] > 0, "element " + element + " in empty file " + file);
+            assertTrue(starts[file] <= element && element < starts[file + 1], "element " + element + " in file " + file);
+        }
+        assertThrows(IllegalArgumentException.class, () -> files.fileOf(files.length()));
+    }
+
+    @Test
+    void emptyInput() throws IOException {
+        write("part-00000", 0);
+
+        HdfsInputFiles files = HdfsInputFiles.list(fileSystem, dir.toString());
+
+        assertEquals(1, files.count());
+        assertEquals(0, files.length());
+        files.checkRanges(new long[]{0, 0});
+    }
+
+    @Test
+    void rejectsPartialRecords() throws IOException {
+        write("part-00000", 2);
+        write("part-00001", new byte[3 * RECORD_LENGTH + 1]);
+
+        IOException ex = assertThrows(IOException.class, () -> HdfsInputFiles.list(fileSystem, dir.toString()));
+        assertTrue(ex.getMessage().contains("part-00001"), ex.getMessage());
+    }
+
+    @Test
+    void rejectsPartialRecordsOfSingleFile() throws IOException {
+        Path file = write("input", new byte[RECORD_LENGTH - 1]);
+
+        assertThrows(IOException.class, () -> HdfsInputFiles.list(fileSystem, file.toString()));
+    }
+
+    @Test
+    void evenSplitCoversEveryRecordOnce() {
+        for (long elements : new long[]{0, 1, 7, 100, 1001}) {
+            for (int parts : new int[]{1, 2, 3, 8, 13}) {
+                int[] covered = new int[(int) elements];
+                long expectedStart = 0;
+                for (int part = 0; part < parts; ++part) {
+                    long[] range = HdfsInputFiles.evenSplit(elements, part, parts);
+                    assertEquals(expectedStart, range[0], elements + " elements, part " + part + " of " + parts);
+                    long size = range[1] - range[0];
+                    assertTrue(size == elements / parts || size == elements / parts + 1,
+                            elements + " elements, part " + part + " of " + parts + " has " + size);
+                    for (long element = range[0]; element < range[1]; ++element) {
+                        ++covered[(int) element];
+                    }
+                    expectedStart = range[1];
+                }
+                assertEquals(elements, expectedStart);
+                int[] once = new int[(int) elements];
+                Arrays.fill(once, 1);
+                assertArrayEquals(once, covered);
+            }
+        }
+    }
+
+    @Test
+    void evenSplitRejectsPartOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> HdfsInputFiles.evenSplit(10, 3, 3));
+        assertThrows(IllegalArgumentException.class, () -> HdfsInputFiles.evenSplit(10, -1, 3));
+    }
+}
@@ -0,0 +1,186 @@
+package pl.umk.mat.faramir.terasort;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+class SplitPlannerTest {
+
+    /**
+     * Checks that every element is assigned exactly once, quotas equal the even split and
+     * the reported number of local elements matches the ranges.
+     */
+    private static void checkPlan(SplitPlanner.Plan plan, List<SplitPlanner.Block> blocks, String[] threadHosts,
+                                  long totalElements) {
+        long[][] ranges = plan.ranges();
+        assertEquals(threadHosts.length, ranges.length);
+        assertEquals(totalElements, plan.totalElements());
+
+        int[] assigned = new int[(int) totalElements];
+        long localElements = 0;
+        for (int thread = 0; thread < ranges.length; ++thread) {
+            long[] split = HdfsInputFiles.evenSplit(totalElements, thread, threadHosts.length);
+            long elements = 0;
+            for (int r = 0; r < ranges[thread].length; r += 2) {
+                assertTrue(ranges[thread][r] < ranges[thread][r + 1], "empty range of thread " + thread);
+                assertTrue(r == 0 || ranges[thread][r - 1] < ranges[thread][r], "unordered ranges of thread " + thread);
+                for (long element = ranges[thread][r]; element < ranges[thread][r + 1]; ++element) {
+                    ++assigned[(int) element];
+                    if (blockOf(blocks, element).hosts().contains(threadHosts[thread].toLowerCase())) {
+                        ++localElements;
+                    }
+                }
+                elements += ranges[thread][r + 1] - ranges[thread][r];
+            }
+            assertEquals(split[1] - split[0], elements, "quota of thread " + thread);
+        }
+        int[] once = new int[(int) totalElements];
+        Arrays.fill(once, 1);
+        assertArrayEquals(once, assigned);
+        assertEquals(localElements, plan.localElements());
+    }
+
+    private static SplitPlanner.Block blockOf(List<SplitPlanner.Block> blocks, long element) {
+        for (SplitPlanner.Block block : blocks) {
+            if (block.startElement() <= element && element < block.endElement()) {
+                return block;
+            }
+        }
+        throw new AssertionError("Element " + element + " is not in any block");
+    }
+
+    private static SplitPlanner.Block block(long start, long end, String... hosts) {
+        return new SplitPlanner.Block(start, end, new HashSet<>(Arrays.asList(hosts)));
+    }
+
+    @Test
+    void singleReplicaPerHost() {
+        List<SplitPlanner.Block> blocks = List.of(
+                block(0, 40, "c"),
+                block(40, 80, "b"),
+                block(80, 120, "a"));
+        String[] threadHosts = {"a", "b", "c"};
+
+        SplitPlanner.Plan plan = SplitPlanner.plan(blocks, threadHosts, 120);
+
+        checkPlan(plan, blocks, threadHosts, 120);
+        assertEquals(120, plan.localElements());
+        assertArrayEquals(new long[]{80, 120}, plan.ranges()[0]);
+        assertArrayEquals(new long[]{40, 80}, plan.ranges()[1]);
+        assertArrayEquals(new long[]{0, 40}, plan.ranges()[2]);
+    }
+
+    @Test
+    void hostNamesAreNormalized() {
+        List<SplitPlanner.Block> blocks = List.of(
+                block(0, 10, "node2"),
+                block(10, 20, "node1"));
+        String[] threadHosts = {"Node1.cluster.example.org", "NODE2"};
+
+        SplitPlanner.Plan plan = SplitPlanner.plan(blocks, threadHosts, 20);
+
+        assertEquals(20, plan.localElements());
+        assertArrayEquals(new long[]{10, 20}, plan.ranges()[0]);
+        assertArrayEquals(new long[]{0, 10}, plan.ranges()[1]);
+    }
+
+    @Test
+    void remoteBlocksFillRemainingQuotas() {
+        List<SplitPlanner.Block> blocks = List.of(
+                block(0, 7, "a"),
+                block(7, 13),
+                block(13, 30, "x", "y"),
+                block(30, 31, "b"));
+        String[] threadHosts = {"a", "a", "b", "c"};
+
+        SplitPlanner.Plan plan = SplitPlanner.plan(blocks, threadHosts, 31);
+
+        checkPlan(plan, blocks, threadHosts, 31);
+        assertEquals(8, plan.localElements());
+    }
+
+    @Test
+    void moreThreadsThanElements() {
+        List<SplitPlanner.Block> blocks = List.of(block(0, 3, "a"));
+        String[] threadHosts = {"a", "a", "b", "b", "a"};
+
+        SplitPlanner.Plan plan = SplitPlanner.plan(blocks, threadHosts, 3);
+
+        checkPlan(plan, blocks, threadHosts, 3);
+        assertEquals(2, plan.localElements());
+    }
+
+    @Test
+    void emptyInput() {
+        String[] threadHosts = {"a", "b"};
+
+        SplitPlanner.Plan plan = SplitPlanner.plan(List.of(), threadHosts, 0);
+
+        checkPlan(plan, List.of(), threadHosts, 0);
+        assertEquals(0, plan.localElements());
+    }
+
+    /**
+     * Every block has a replica on the host owning its elements in an even split of hosts,
+     * so a fully local assignment exists, and other replicas are placed at random. All threads
+     * get the same number of elements, so the order of threads does not matter.
+     */
+    @Test
+    void fullyLocalWhenPossible() {
+        String[] hosts = {"a", "b", "c", "d", "e"};
+        for (int seed = 0; seed < 200; ++seed) {
+            Random random = new Random(seed);
+            int threadsPerHost = 1 + random.nextInt(4);
+            String[] threadHosts = new String[hosts.length * threadsPerHost];
+            for (int thread = 0; thread < threadHosts.length; ++thread) {
+                threadHosts[thread] = hosts[thread / threadsPerHost];
+            }
+            long totalElements = (long) threadHosts.length * (1 + random.nextInt(400));
+
+            TreeSet<Long> cuts = new TreeSet<>();
+            cuts.add(totalElements);
+            for (int host = 0; host < hosts.length; ++host) {
+                cuts.add(HdfsInputFiles.evenSplit(totalElements, host * threadsPerHost, threadHosts.length)[0]);
+            }
+            for (int i = random.nextInt(30); i > 0; --i) {
+                cuts.add(1 + (long) random.nextInt((int) totalElements - 1));
+            }
+            List<SplitPlanner.Block> blocks = new ArrayList<>();
+            long start = 0;
+            int owner = 0;
+            for (long end : cuts.tailSet(start, false)) {
+                while (start >= HdfsInputFiles.evenSplit(totalElements, owner * threadsPerHost + threadsPerHost - 1, threadHosts.length)[1]) {
+                    ++owner;
+                }
+                Set<String> replicas = new HashSet<>();
+                replicas.add(hosts[owner]);
+                for (int i = random.nextInt(3); i > 0; --i) {
+                    replicas.add(hosts[random.nextInt(hosts.length)]);
+                }
+                blocks.add(new SplitPlanner.Block(start, end, replicas));
+                start = end;
+            }
+            String[] shuffled = threadHosts.clone();
+            for (int i = shuffled.length - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                String swap = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swap;
+            }
+
+            SplitPlanner.Plan plan = SplitPlanner.plan(blocks, shuffled, totalElements);
+
+            checkPlan(plan, blocks, shuffled, totalElements);
+            assertEquals(totalElements, plan.localElements(), "local elements with seed " + seed);
+        }
+    }
+}